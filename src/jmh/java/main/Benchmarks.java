@@ -0,0 +1,168 @@
+package main;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the hot paths of preprocessing, training and inference on synthetic enquiries, so they run offline and
+ * versions can be compared: generateTrainingFile in rows per second, getSampledDistribution in documents per second
+ * and sortByValueDesc in maps per second. Cleaning is measured by {@link CleanerBenchmark}.
+ * Usage: gradle jmh, or gradle jmhJar, then java -jar build/libs/TopicModelling-jmh.jar Benchmarks
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class Benchmarks {
+
+    static final String STOP_WORDS_FILENAME = "stopwords.txt";
+    static final String OTHER_WORDS_FILENAME = "otherwords.txt";
+    private static final String INPUT_FILENAME = "input.csv";
+    private static final int NUM_PREPROCESSING_ROWS = 20000;
+    private static final int NUM_TRAINING_DOCUMENTS = 2000;
+    private static final int NUM_TRAINING_ITERATIONS = 50;
+    private static final int NUM_INFERENCE_DOCUMENTS = 1000;
+
+    /**
+     * Returns the path of a file of the data folder, set by the build with the benchmark.data property
+     *
+     * @param fileName Name of the file
+     * @return
+     */
+    static String getDataPath(String fileName) {
+        return Paths.get(System.getProperty("benchmark.data", "data"), fileName).toString();
+    }
+
+    /**
+     * Synthetic input file. The preprocessing cache is disabled, so every invocation cleans all the rows
+     */
+    @State(Scope.Benchmark)
+    public static class PreprocessState {
+
+        private File folder_;
+
+        @Setup
+        public void setUp() throws Exception {
+            folder_ = Files.createTempDirectory("benchmark").toFile();
+            BufferedWriter bwInput = null;
+            try {
+                bwInput = Utils.getBufferedWriter(folder_.getPath(), INPUT_FILENAME, false);
+                new SyntheticCorpus(1).writeEnquiries(bwInput, NUM_PREPROCESSING_ROWS);
+            } finally {
+                Utils.closeBufferedWriter(bwInput);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            deleteRecursively(folder_);
+        }
+    }
+
+    /**
+     * Model trained on synthetic enquiries with few iterations, and the documents to infer
+     */
+    @State(Scope.Benchmark)
+    public static class InferenceState {
+
+        @Param({"10", "50", "100"})
+        public int numTopics;
+
+        private TopicInferencer inferencer_;
+        private ArrayList<Instance> testInstances_;
+
+        @Setup
+        public void setUp() throws Exception {
+            // Don't mix the progress of the sampler with the results
+            ParallelTopicModel.logger.setLevel(Level.WARNING);
+            TextCleaner textCleaner = new TextCleaner(Utils.loadWordList(getDataPath(STOP_WORDS_FILENAME)),
+                    Utils.loadWordList(getDataPath(OTHER_WORDS_FILENAME)));
+            SyntheticCorpus corpus = new SyntheticCorpus(1);
+            Pipe pipe = TopicModelling.newImportPipe(new Alphabet());
+            InstanceList instances = new InstanceList(pipe);
+            for (int i = 0; i < NUM_TRAINING_DOCUMENTS; i++) {
+                String document = textCleaner.clean(corpus.nextDocument(20 + i % 120));
+                instances.addThruPipe(new Instance(document, null, String.valueOf(i), null));
+            }
+            testInstances_ = new ArrayList<Instance>();
+            for (int i = 0; i < NUM_INFERENCE_DOCUMENTS; i++) {
+                String document = textCleaner.clean(corpus.nextDocument(20 + i % 120));
+                testInstances_.add(pipe.instanceFrom(new Instance(document, null, "Test Instance", null)));
+            }
+
+            TrainingParameters trainingParameters = new TrainingParameters();
+            trainingParameters.setNumThreads(1);
+            trainingParameters.setNumIterations(NUM_TRAINING_ITERATIONS);
+            ParallelTopicModel model = trainingParameters.newTopicModel(numTopics);
+            model.setTopicDisplay(0, 0);
+            model.addInstances(instances);
+            model.estimate();
+            inferencer_ = model.getInferencer();
+        }
+    }
+
+    /**
+     * Map of word counts with the size of a vocabulary. Word counts follow a Zipf-like distribution, with many ties
+     * among the rare words
+     */
+    @State(Scope.Benchmark)
+    public static class SortState {
+
+        @Param({"10000", "100000"})
+        public int vocabularySize;
+
+        private HashMap<String, Integer> wordCounts_;
+
+        @Setup
+        public void setUp() {
+            Random random = new Random(1);
+            wordCounts_ = new HashMap<String, Integer>();
+            for (int i = 0; i < vocabularySize; i++)
+                wordCounts_.put("word" + i + "_" + random.nextInt(1000), 1 + vocabularySize / (1 + random.nextInt(vocabularySize)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_PREPROCESSING_ROWS)
+    public void generateTrainingFile(PreprocessState state) throws Exception {
+        TopicModelling tfs = new TopicModelling(getDataPath(STOP_WORDS_FILENAME), getDataPath(OTHER_WORDS_FILENAME));
+        tfs.setUsePreprocessingCache(false);
+        tfs.generateTrainingFile(state.folder_.getPath(), INPUT_FILENAME, ",", 0, 4, 5, 9, false, true, true, false);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_INFERENCE_DOCUMENTS)
+    public void getSampledDistribution(InferenceState state, Blackhole blackhole) {
+        for (Instance instance : state.testInstances_)
+            blackhole.consume(state.inferencer_.getSampledDistribution(instance, 30, 1, 5));
+    }
+
+    @Benchmark
+    public Map<String, Integer> sortByValueDesc(SortState state) {
+        return Utils.sortByValueDesc(state.wordCounts_);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,74 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the throughput of {@link Utils#cleanString} with the {@link TextCleaner} on synthetic enquiries of several
+ * lengths, in documents per second. The setup checks that both produce the same output and word counts.
+ * Usage: gradle jmhJar, then java -jar build/libs/TopicModelling-jmh.jar CleanerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CleanerBenchmark {
+
+    private static final int NUM_DOCUMENTS = 1000;
+
+    @Param({"10", "80", "400"})
+    public int numWords;
+
+    private String stopWordsPattern_;
+    private String otherWordsPattern_;
+    private TextCleaner textCleaner_;
+    private String[] documents_;
+
+    @Setup
+    public void setUp() throws Exception {
+        ArrayList<String> stopWords = Utils.loadWordList(Benchmarks.getDataPath(Benchmarks.STOP_WORDS_FILENAME));
+        ArrayList<String> otherWords = Utils.loadWordList(Benchmarks.getDataPath(Benchmarks.OTHER_WORDS_FILENAME));
+        stopWordsPattern_ = String.join("|", stopWords);
+        otherWordsPattern_ = String.join("|", otherWords);
+        textCleaner_ = new TextCleaner(stopWords, otherWords);
+
+        SyntheticCorpus corpus = new SyntheticCorpus(1);
+        documents_ = new String[NUM_DOCUMENTS];
+        for (int i = 0; i < NUM_DOCUMENTS; i++)
+            documents_[i] = corpus.nextDocument(numWords);
+
+        // Check both paths produce the same words and counts
+        HashMap<String, Integer> expectedCount = new HashMap<String, Integer>();
+        HashMap<String, Integer> actualCount = new HashMap<String, Integer>();
+        for (String document : documents_) {
+            String expected = Utils.cleanString(document, stopWordsPattern_, otherWordsPattern_, expectedCount);
+            String actual = textCleaner_.clean(document, actualCount);
+            if (!expected.equals(actual))
+                throw new IllegalStateException(String.format("Different output for \"%s\": \"%s\" / \"%s\"",
+                        document, expected, actual));
+        }
+        if (!expectedCount.equals(actualCount))
+            throw new IllegalStateException("Different word counts");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_DOCUMENTS)
+    public void cleanString(Blackhole blackhole) {
+        for (String document : documents_)
+            blackhole.consume(Utils.cleanString(document, stopWordsPattern_, otherWordsPattern_,
+                    new HashMap<String, Integer>()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_DOCUMENTS)
+    public void textCleaner(Blackhole blackhole) {
+        for (String document : documents_)
+            blackhole.consume(textCleaner_.clean(document, new HashMap<String, Integer>()));
+    }
+}
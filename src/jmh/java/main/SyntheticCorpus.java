@@ -0,0 +1,98 @@
+package main;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates synthetic enquiries, so the benchmarks can run without the real enquiry exports
+ */
+public class SyntheticCorpus {
+
+    private static final String[] STOP_WORDS = {"i", "the", "a", "my", "to", "and", "is", "it", "of", "for", "on",
+            "but", "have", "this", "that", "was", "can't", "don't", "it's", "i'm", "with", "me", "you", "not", "we"};
+    private static final String[] OTHER_WORDS = {"Hi", "Hello", "thanks", "Thank", "please", "customer", "client",
+            "email", "date"};
+    private static final String[] TOPIC_WORDS = {"licence", "renewal", "subscription", "expired", "refund",
+            "payment", "charged", "invoice", "install", "uninstall", "laptop", "computer", "windows", "update",
+            "virus", "scan", "quarantine", "firewall", "blocked", "website", "browser", "password", "account",
+            "login", "reset", "activation", "key", "product", "download", "error", "message", "backup", "restore",
+            "device", "phone", "tablet", "android", "router", "network", "slow", "crash", "popup", "cancel",
+            "order", "bank", "card", "protection", "security", "identity", "support", "chat", "agent", "ticket"};
+    private static final String[] PUNCTUATION = {".", ",", "!", "?", ":", ";", " -", "..."};
+    private static final String[] ADVICE_CODES = {"BILL", "TECH", "SALES", "ACCT", "INST", "SEC"};
+
+    private final Random random_;
+
+    /**
+     * Creates a new generator with a fixed seed, so runs can be compared
+     *
+     * @param seed Random seed
+     */
+    public SyntheticCorpus(long seed) {
+        random_ = new Random(seed);
+    }
+
+    /**
+     * Generates the free text of an enquiry with mixed case, punctuation, numbers, emails and urls
+     *
+     * @param numWords Approximate number of words
+     * @return
+     */
+    public String nextDocument(int numWords) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < numWords; i++) {
+            if (i > 0)
+                sb.append(' ');
+
+            int kind = random_.nextInt(100);
+            if (kind < 45)
+                sb.append(STOP_WORDS[random_.nextInt(STOP_WORDS.length)]);
+            else if (kind < 85)
+                sb.append(TOPIC_WORDS[random_.nextInt(TOPIC_WORDS.length)]);
+            else if (kind < 91)
+                sb.append(OTHER_WORDS[random_.nextInt(OTHER_WORDS.length)]);
+            else if (kind < 95)
+                sb.append(random_.nextInt(10000));
+            else if (kind < 97)
+                sb.append('£').append(random_.nextInt(100)).append('.').append(random_.nextInt(90) + 10);
+            else if (kind < 98)
+                sb.append("user").append(random_.nextInt(1000)).append("@example.com");
+            else if (kind < 99)
+                sb.append("https://support.example.com/kb/").append(random_.nextInt(10000));
+            else
+                sb.append((char) ('a' + random_.nextInt(26)));
+
+            if (random_.nextInt(8) == 0)
+                sb.append(PUNCTUATION[random_.nextInt(PUNCTUATION.length)]);
+        }
+
+        // Capitalise the first letter, as in a real enquiry
+        if (sb.length() > 0)
+            sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
+        return sb.toString();
+    }
+
+    /**
+     * Writes an input file with the layout expected by the training mode: id, three advice code levels, the
+     * primary field and four extra fields
+     *
+     * @param bw      BufferedWriter to use
+     * @param numRows Number of rows to write
+     * @throws IOException
+     */
+    public void writeEnquiries(BufferedWriter bw, int numRows) throws IOException {
+        for (int i = 0; i < numRows; i++) {
+            String adviceCode = ADVICE_CODES[random_.nextInt(ADVICE_CODES.length)];
+            StringBuilder sb = new StringBuilder();
+            sb.append(1000000 + i).append(',')
+                    .append(adviceCode).append(',')
+                    .append(adviceCode).append(random_.nextInt(5)).append(',')
+                    .append(adviceCode).append(random_.nextInt(25)).append(',')
+                    .append(nextDocument(20 + random_.nextInt(120)).replace(',', ' '));
+            for (int j = 0; j < 4; j++)
+                sb.append(',').append(TOPIC_WORDS[random_.nextInt(TOPIC_WORDS.length)]);
+            Utils.writeLine(bw, sb.toString());
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package main;
+
+import java.io.*;
+import java.util.Random;
+
+/**
+ * Multinomial logistic regression per advice code level, with the topic proportions of a document as features. Fitted
+ * with stochastic gradient descent on the documents of a trained model. Scoring a document costs one dot product per
+ * advice code, so it adds little to topic inference
+ */
+public class AdviceCodeClassifier implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    public static final int DEFAULT_NUM_EPOCHS = 20;
+    private static final double LEARNING_RATE = 0.5;
+    private static final double L2_REGULARIZATION = 1e-5;
+
+    private final int numTopics_;
+    // Advice codes of every level, in label order
+    private final String[][] labels_;
+    // Weights of every level: label x (topic, bias)
+    private final double[][][] weights_;
+
+    /**
+     * Fits a classifier per level
+     *
+     * @param features   Topic proportions of every document
+     * @param labels     Label of every document per level, -1 when the document has no advice code in the level
+     * @param codes      Advice codes of the labels of every level
+     * @param numEpochs  Number of passes over the documents
+     * @param randomSeed Random seed of the order of the documents, to replicate results
+     */
+    public AdviceCodeClassifier(double[][] features, int[][] labels, String[][] codes, int numEpochs, int randomSeed) {
+        numTopics_ = features.length == 0 ? 0 : features[0].length;
+        labels_ = codes;
+        weights_ = new double[codes.length][][];
+        Random random = new Random(randomSeed);
+        for (int level = 0; level < codes.length; level++) {
+            weights_[level] = new double[codes[level].length][numTopics_ + 1];
+            fit(features, labels[level], weights_[level], numEpochs, random);
+        }
+    }
+
+    public int getNumLevels() {
+        return labels_.length;
+    }
+
+    public int getNumTopics() {
+        return numTopics_;
+    }
+
+    /**
+     * Returns the advice code of a label
+     *
+     * @param level Level, from 0
+     * @param label Label
+     * @return
+     */
+    public String getAdviceCode(int level, int label) {
+        return labels_[level][label];
+    }
+
+    /**
+     * Returns the probability of every advice code of a level, in label order
+     *
+     * @param level              Level, from 0
+     * @param topicProbabilities Probability of every topic of the document
+     * @return
+     */
+    public double[] getProbabilities(int level, double[] topicProbabilities) {
+        double[] probabilities = new double[labels_[level].length];
+        score(weights_[level], topicProbabilities, probabilities);
+        return probabilities;
+    }
+
+    /**
+     * Formats the most probable advice codes of every level as "level:code,probability,...", levels from 1, sorted
+     * by level and by probability in descending order
+     *
+     * @param topicProbabilities Probability of every topic of the document
+     * @param numCodes           Number of advice codes per level
+     * @return
+     */
+    public String formatTopAdviceCodes(double[] topicProbabilities, int numCodes) {
+        StringBuilder sb = new StringBuilder();
+        for (int level = 0; level < labels_.length; level++) {
+            double[] probabilities = getProbabilities(level, topicProbabilities);
+            for (int label : Utils.topIndicesDesc(probabilities, numCodes)) {
+                if (sb.length() > 0)
+                    sb.append(',');
+                sb.append(level + 1).append(':').append(labels_[level][label]).append(',').append(probabilities[label]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the classifier to a file
+     *
+     * @param file File to write to
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        ObjectOutputStream oos = null;
+        try {
+            oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            oos.writeObject(this);
+        } finally {
+            if (oos != null)
+                oos.close();
+        }
+    }
+
+    /**
+     * Reads a classifier written by {@link #write}
+     *
+     * @param file File to read from
+     * @return
+     * @throws Exception
+     */
+    public static AdviceCodeClassifier read(File file) throws Exception {
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return (AdviceCodeClassifier) ois.readObject();
+        } finally {
+            if (ois != null)
+                ois.close();
+        }
+    }
+
+    /**
+     * Fits the weights of a level minimizing the log loss, visiting the documents in a new random order every epoch
+     * with a learning rate that decreases with the epochs
+     */
+    private static void fit(double[][] features, int[] labels, double[][] weights, int numEpochs, Random random) {
+        int[] documents = new int[labels.length];
+        int numDocuments = 0;
+        for (int doc = 0; doc < labels.length; doc++) {
+            if (labels[doc] >= 0)
+                documents[numDocuments++] = doc;
+        }
+        if (numDocuments == 0 || weights.length == 0)
+            return;
+
+        double[] probabilities = new double[weights.length];
+        for (int epoch = 0; epoch < numEpochs; epoch++) {
+            // Fisher-Yates shuffle
+            for (int i = numDocuments - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int doc = documents[i];
+                documents[i] = documents[j];
+                documents[j] = doc;
+            }
+
+            double learningRate = LEARNING_RATE / (1 + epoch);
+            for (int i = 0; i < numDocuments; i++) {
+                double[] x = features[documents[i]];
+                int label = labels[documents[i]];
+                score(weights, x, probabilities);
+                for (int l = 0; l < weights.length; l++) {
+                    double[] w = weights[l];
+                    double gradient = probabilities[l] - (l == label ? 1 : 0);
+                    for (int topic = 0; topic < x.length; topic++)
+                        w[topic] -= learningRate * (gradient * x[topic] + L2_REGULARIZATION * w[topic]);
+                    w[x.length] -= learningRate * gradient;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the softmax of the scores of every label
+     */
+    private static void score(double[][] weights, double[] x, double[] probabilities) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int l = 0; l < weights.length; l++) {
+            double[] w = weights[l];
+            double score = w[x.length];
+            for (int topic = 0; topic < x.length; topic++)
+                score += w[topic] * x[topic];
+            probabilities[l] = score;
+            max = Math.max(max, score);
+        }
+        double sum = 0;
+        for (int l = 0; l < weights.length; l++) {
+            probabilities[l] = Math.exp(probabilities[l] - max);
+            sum += probabilities[l];
+        }
+        for (int l = 0; l < weights.length; l++)
+            probabilities[l] /= sum;
+    }
+}
@@ -0,0 +1,165 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Advice codes of every enquiry, dictionary encoded. Enquiry ids map to dense ints, numeric ids through a primitive
+ * map without keeping their strings, and every level is an int array of code ids indexed by enquiry. Every different
+ * advice code is kept once
+ */
+public class AdviceCodeIndex {
+
+    public static final int NUM_LEVELS = 3;
+    public static final int NO_ENQUIRY = -1;
+    public static final int NO_CODE = -1;
+    private static final int MAX_NUMERIC_ID_LENGTH = 18;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final LongIntMap numericIds_;
+    private final HashMap<String, Integer> otherIds_;
+    private final HashMap<String, Integer> codeIds_;
+    private final ArrayList<String> codes_;
+    private int[][] enquiryCodes_;
+    private int numEnquiries_;
+
+    /**
+     * Creates a new empty index
+     */
+    public AdviceCodeIndex() {
+        numericIds_ = new LongIntMap();
+        otherIds_ = new HashMap<String, Integer>();
+        codeIds_ = new HashMap<String, Integer>();
+        codes_ = new ArrayList<String>();
+        enquiryCodes_ = new int[NUM_LEVELS][INITIAL_CAPACITY];
+        for (int[] levelCodes : enquiryCodes_)
+            Arrays.fill(levelCodes, NO_CODE);
+        numEnquiries_ = 0;
+    }
+
+    public int getNumEnquiries() {
+        return numEnquiries_;
+    }
+
+    /**
+     * Returns the number of different advice codes, of all levels
+     *
+     * @return
+     */
+    public int getNumCodes() {
+        return codes_.size();
+    }
+
+    /**
+     * Returns the dense id of an enquiry, adding it if it is new
+     *
+     * @param enquiryId Id of the enquiry
+     * @return
+     */
+    public int addEnquiry(String enquiryId) {
+        int enquiry = getEnquiry(enquiryId);
+        if (enquiry != NO_ENQUIRY)
+            return enquiry;
+
+        enquiry = numEnquiries_++;
+        if (enquiry == enquiryCodes_[0].length) {
+            for (int level = 0; level < NUM_LEVELS; level++) {
+                enquiryCodes_[level] = Arrays.copyOf(enquiryCodes_[level], enquiry * 2);
+                Arrays.fill(enquiryCodes_[level], enquiry, enquiry * 2, NO_CODE);
+            }
+        }
+        long numericId = parseNumericId(enquiryId);
+        if (numericId >= 0)
+            numericIds_.put(numericId, enquiry);
+        else
+            otherIds_.put(enquiryId, enquiry);
+        return enquiry;
+    }
+
+    /**
+     * Returns the dense id of an enquiry, or NO_ENQUIRY if it is not in the index. Does not allocate for numeric ids
+     *
+     * @param enquiryId Id of the enquiry
+     * @return
+     */
+    public int getEnquiry(String enquiryId) {
+        long numericId = parseNumericId(enquiryId);
+        if (numericId >= 0)
+            return numericIds_.get(numericId);
+        Integer enquiry = otherIds_.get(enquiryId);
+        return enquiry == null ? NO_ENQUIRY : enquiry;
+    }
+
+    /**
+     * Sets the advice code of an enquiry in a level
+     *
+     * @param enquiry Dense id of the enquiry
+     * @param level   Level, from 0
+     * @param code    Advice code
+     */
+    public void setCode(int enquiry, int level, String code) {
+        Integer codeId = codeIds_.get(code);
+        if (codeId == null) {
+            codeId = codes_.size();
+            codeIds_.put(code, codeId);
+            codes_.add(code);
+        }
+        enquiryCodes_[level][enquiry] = codeId;
+    }
+
+    /**
+     * Returns the id of the advice code of an enquiry in a level, or NO_CODE if it has none
+     *
+     * @param enquiry Dense id of the enquiry, or NO_ENQUIRY
+     * @param level   Level, from 0
+     * @return
+     */
+    public int getCodeId(int enquiry, int level) {
+        return enquiry == NO_ENQUIRY ? NO_CODE : enquiryCodes_[level][enquiry];
+    }
+
+    /**
+     * Returns the advice code of an id
+     *
+     * @param codeId Id of the advice code
+     * @return
+     */
+    public String getCode(int codeId) {
+        return codes_.get(codeId);
+    }
+
+    /**
+     * Returns the advice code of an enquiry in a level, or null if it has none
+     *
+     * @param enquiryId Id of the enquiry
+     * @param level     Level, from 0
+     * @return
+     */
+    public String getCode(String enquiryId, int level) {
+        int codeId = getCodeId(getEnquiry(enquiryId), level);
+        return codeId == NO_CODE ? null : codes_.get(codeId);
+    }
+
+    /**
+     * Returns the value of an id made only of digits, without leading zeros so different ids have different values,
+     * or -1 for any other id
+     *
+     * @param enquiryId Id of the enquiry
+     * @return
+     */
+    static long parseNumericId(String enquiryId) {
+        int length = enquiryId.length();
+        if (length == 0 || length > MAX_NUMERIC_ID_LENGTH || (length > 1 && enquiryId.charAt(0) == '0'))
+            return -1;
+
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = enquiryId.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
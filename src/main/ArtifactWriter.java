@@ -0,0 +1,165 @@
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the lines of a preprocessing artifact with few allocations: values are appended to a reused character
+ * buffer, encoded into a large direct buffer and written through a file channel. Lines end with the line separator
+ * of the platform and are encoded in the default charset, as with {@link Utils#getBufferedWriter}
+ */
+public class ArtifactWriter implements Closeable {
+
+    private static final int CHAR_BUFFER_SIZE = 1 << 16;
+    private static final int BYTE_BUFFER_SIZE = 1 << 20;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final FileChannel channel_;
+    private final CharsetEncoder encoder_;
+    private final char[] chars_;
+    private final CharBuffer charBuffer_;
+    private final ByteBuffer byteBuffer_;
+    private int numChars_;
+
+    /**
+     * Creates a writer of a new file, replacing it if it exists
+     *
+     * @param folderPath Folder of the file, created if needed
+     * @param fileName   Name of the file
+     * @throws IOException
+     */
+    public ArtifactWriter(String folderPath, String fileName) throws IOException {
+        Utils.createDirectory(folderPath);
+        channel_ = FileChannel.open(Paths.get(folderPath, fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        encoder_ = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        chars_ = new char[CHAR_BUFFER_SIZE];
+        charBuffer_ = CharBuffer.wrap(chars_);
+        byteBuffer_ = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+        numChars_ = 0;
+    }
+
+    /**
+     * Appends a value to the current line
+     *
+     * @param value Value to append
+     * @return
+     * @throws IOException
+     */
+    public ArtifactWriter append(String value) throws IOException {
+        int start = 0;
+        int length = value.length();
+        while (start < length) {
+            if (numChars_ == chars_.length)
+                encodeChars(false);
+            int end = Math.min(length, start + chars_.length - numChars_);
+            value.getChars(start, end, chars_, numChars_);
+            numChars_ += end - start;
+            start = end;
+        }
+        return this;
+    }
+
+    /**
+     * Appends a character to the current line
+     *
+     * @param c Character to append
+     * @return
+     * @throws IOException
+     */
+    public ArtifactWriter append(char c) throws IOException {
+        if (numChars_ == chars_.length)
+            encodeChars(false);
+        chars_[numChars_++] = c;
+        return this;
+    }
+
+    /**
+     * Appends a number to the current line
+     *
+     * @param value Number to append
+     * @return
+     * @throws IOException
+     */
+    public ArtifactWriter append(long value) throws IOException {
+        return append(Long.toString(value));
+    }
+
+    /**
+     * Ends the current line
+     *
+     * @throws IOException
+     */
+    public void endLine() throws IOException {
+        append(LINE_SEPARATOR);
+    }
+
+    /**
+     * Writes a whole line
+     *
+     * @param line Line to write, without line separator
+     * @throws IOException
+     */
+    public void writeLine(String line) throws IOException {
+        append(line);
+        endLine();
+    }
+
+    /**
+     * Writes everything appended and closes the file
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            encodeChars(true);
+            writeBytes();
+        } finally {
+            channel_.close();
+        }
+    }
+
+    /**
+     * Encodes the appended characters into the byte buffer, writing it to the file whenever it is full. Characters of
+     * an incomplete surrogate pair are kept for the next call, unless it is the end of the input
+     */
+    private void encodeChars(boolean endOfInput) throws IOException {
+        charBuffer_.limit(numChars_);
+        charBuffer_.position(0);
+        while (true) {
+            CoderResult result = encoder_.encode(charBuffer_, byteBuffer_, endOfInput);
+            if (result.isOverflow()) {
+                writeBytes();
+                continue;
+            }
+            if (endOfInput) {
+                while (encoder_.flush(byteBuffer_).isOverflow())
+                    writeBytes();
+            }
+            break;
+        }
+        // Move any characters left to the start
+        int remaining = charBuffer_.remaining();
+        System.arraycopy(chars_, charBuffer_.position(), chars_, 0, remaining);
+        numChars_ = remaining;
+    }
+
+    private void writeBytes() throws IOException {
+        byteBuffer_.flip();
+        while (byteBuffer_.hasRemaining())
+            channel_.write(byteBuffer_);
+        byteBuffer_.clear();
+    }
+}
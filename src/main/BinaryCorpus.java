@@ -0,0 +1,356 @@
+package main;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+
+/**
+ * Preprocessed training documents in a compact binary file, read through a memory map so no text is parsed. The file
+ * has a header, the vocabulary, the document ids, an index with the offsets of every document and the word ids of all
+ * documents as varints:
+ * <pre>
+ * int magic, int version, int numDocuments, int numTypes,
+ * long vocabularyOffset, long documentIdsOffset, long indexOffset, long tokensOffset
+ * vocabulary:   per word, varint length and UTF-8 bytes, in id order
+ * document ids: UTF-8 bytes of all ids
+ * index:        (numDocuments + 1) long offsets in tokens, then (numDocuments + 1) long offsets in document ids
+ * tokens:       per document, the word ids as varints
+ * </pre>
+ * A buffer maps at most 2 GB, so the file is mapped in segments and read with long positions
+ */
+public class BinaryCorpus {
+
+    public static final String FILE_EXTENSION = ".bin";
+    private static final int MAGIC = 0x544D4331;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 * 4 + 4 * 8;
+    // 1 GB segments
+    private static final int DEFAULT_SEGMENT_BITS = 30;
+
+    private final ByteBuffer[] segments_;
+    private final int segmentBits_;
+    private final long segmentMask_;
+    private final int numDocuments_;
+    private final int numTypes_;
+    private final long vocabularyOffset_;
+    private final long documentIdsOffset_;
+    private final long indexOffset_;
+    private final long tokensOffset_;
+
+    /**
+     * Creates a corpus over the bytes of a corpus file
+     *
+     * @param segments    Bytes of the file, in segments of the same size but the last one
+     * @param segmentBits Number of bits of a position within a segment
+     * @throws IOException
+     */
+    private BinaryCorpus(ByteBuffer[] segments, int segmentBits) throws IOException {
+        segments_ = segments;
+        segmentBits_ = segmentBits;
+        segmentMask_ = (1L << segmentBits) - 1;
+        if (readInt(0) != MAGIC || readInt(4) != VERSION)
+            throw new IOException("Not a corpus file of version " + VERSION);
+        numDocuments_ = readInt(8);
+        numTypes_ = readInt(12);
+        vocabularyOffset_ = readLong(16);
+        documentIdsOffset_ = readLong(24);
+        indexOffset_ = readLong(32);
+        tokensOffset_ = readLong(40);
+    }
+
+    /**
+     * Maps a corpus file to memory. The file is not read until its documents are used
+     *
+     * @param file Corpus file
+     * @return
+     * @throws IOException
+     */
+    public static BinaryCorpus open(File file) throws IOException {
+        return open(file, DEFAULT_SEGMENT_BITS);
+    }
+
+    /**
+     * Maps a corpus file to memory in segments of a given size
+     *
+     * @param file        Corpus file
+     * @param segmentBits Number of bits of a position within a segment, at most 30
+     * @return
+     * @throws IOException
+     */
+    static BinaryCorpus open(File file, int segmentBits) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long segmentSize = 1L << segmentBits;
+            ByteBuffer[] segments = new ByteBuffer[(int) Math.max(1, (size + segmentSize - 1) >>> segmentBits)];
+            // The maps stay valid after the channel is closed
+            for (int segment = 0; segment < segments.length; segment++) {
+                long start = segment * segmentSize;
+                segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, size - start));
+            }
+            return new BinaryCorpus(segments, segmentBits);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the documents of an instance list, imported to feature sequences, to a corpus file
+     *
+     * @param file      Corpus file
+     * @param instances Instances with feature sequences as data
+     * @throws IOException
+     */
+    public static void write(File file, InstanceList instances) throws IOException {
+        Alphabet alphabet = instances.getDataAlphabet();
+        int numDocuments = instances.size();
+        long[] tokenOffsets = new long[numDocuments + 1];
+        long[] documentIdOffsets = new long[numDocuments + 1];
+
+        CountingOutputStream counter = null;
+        DataOutputStream output = null;
+        try {
+            // The size of a DataOutputStream is an int, the bytes are counted below it in a long
+            counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            output = new DataOutputStream(counter);
+            // Header, written once the offsets are known
+            output.write(new byte[HEADER_SIZE]);
+
+            long vocabularyOffset = counter.getCount();
+            for (int type = 0; type < alphabet.size(); type++) {
+                byte[] word = alphabet.lookupObject(type).toString().getBytes(StandardCharsets.UTF_8);
+                writeVarInt(output, word.length);
+                output.write(word);
+            }
+
+            long documentIdsOffset = counter.getCount();
+            for (int doc = 0; doc < numDocuments; doc++) {
+                byte[] documentID = instances.get(doc).getName().toString().getBytes(StandardCharsets.UTF_8);
+                documentIdOffsets[doc] = counter.getCount() - documentIdsOffset;
+                output.write(documentID);
+            }
+            documentIdOffsets[numDocuments] = counter.getCount() - documentIdsOffset;
+
+            // The index is as long as the offsets, the tokens follow it
+            long indexOffset = counter.getCount();
+            long tokensOffset = indexOffset + 8L * (numDocuments + 1) * 2;
+            long tokensSize = 0;
+            for (int doc = 0; doc < numDocuments; doc++) {
+                tokenOffsets[doc] = tokensSize;
+                FeatureSequence tokens = (FeatureSequence) instances.get(doc).getData();
+                for (int position = 0; position < tokens.getLength(); position++)
+                    tokensSize += varIntSize(tokens.getIndexAtPosition(position));
+            }
+            tokenOffsets[numDocuments] = tokensSize;
+
+            for (long tokenOffset : tokenOffsets)
+                output.writeLong(tokenOffset);
+            for (long documentIdOffset : documentIdOffsets)
+                output.writeLong(documentIdOffset);
+            for (int doc = 0; doc < numDocuments; doc++) {
+                FeatureSequence tokens = (FeatureSequence) instances.get(doc).getData();
+                for (int position = 0; position < tokens.getLength(); position++)
+                    writeVarInt(output, tokens.getIndexAtPosition(position));
+            }
+            output.close();
+            output = null;
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(numDocuments);
+                raf.writeInt(alphabet.size());
+                raf.writeLong(vocabularyOffset);
+                raf.writeLong(documentIdsOffset);
+                raf.writeLong(indexOffset);
+                raf.writeLong(tokensOffset);
+            } finally {
+                raf.close();
+            }
+        } finally {
+            if (output != null)
+                output.close();
+        }
+    }
+
+    public int getNumDocuments() {
+        return numDocuments_;
+    }
+
+    public int getNumTypes() {
+        return numTypes_;
+    }
+
+    /**
+     * Returns the words of the corpus, in id order
+     *
+     * @return
+     */
+    public String[] getWords() {
+        String[] words = new String[numTypes_];
+        long[] position = {vocabularyOffset_};
+        for (int type = 0; type < numTypes_; type++) {
+            int length = readVarInt(position);
+            words[type] = readString(position[0], length);
+            position[0] += length;
+        }
+        return words;
+    }
+
+    /**
+     * Returns an alphabet with the words of the corpus, so word ids are the same as in the corpus
+     *
+     * @return
+     */
+    public Alphabet newAlphabet() {
+        Alphabet alphabet = new Alphabet();
+        for (String word : getWords())
+            alphabet.lookupIndex(word);
+        return alphabet;
+    }
+
+    /**
+     * Returns the id of a document
+     *
+     * @param doc Position of the document
+     * @return
+     */
+    public String getDocumentId(int doc) {
+        long idsIndex = indexOffset_ + 8L * (numDocuments_ + 1) + 8L * doc;
+        long start = readLong(idsIndex);
+        long end = readLong(idsIndex + 8);
+        return readString(documentIdsOffset_ + start, (int) (end - start));
+    }
+
+    /**
+     * Returns the word ids of a document. Safe to call from several threads
+     *
+     * @param doc Position of the document
+     * @return
+     */
+    public int[] getTokens(int doc) {
+        long start = tokensOffset_ + readLong(indexOffset_ + 8L * doc);
+        long end = tokensOffset_ + readLong(indexOffset_ + 8L * (doc + 1));
+        // Every token takes at least one byte
+        int[] tokens = new int[(int) (end - start)];
+        int numTokens = 0;
+        long[] position = {start};
+        while (position[0] < end)
+            tokens[numTokens++] = readVarInt(position);
+        return numTokens == tokens.length ? tokens : Arrays.copyOf(tokens, numTokens);
+    }
+
+    /**
+     * Imports the documents to instances with the same data as importing the training data file
+     *
+     * @param alphabet Alphabet created with {@link #newAlphabet}
+     * @return
+     */
+    public InstanceList toInstances(Alphabet alphabet) {
+        InstanceList instances = new InstanceList(TopicModelling.newImportPipe(alphabet));
+        for (int doc = 0; doc < numDocuments_; doc++) {
+            instances.add(new Instance(new FeatureSequence(alphabet, getTokens(doc)), Utils.DEFAULT_DOCUMENT_LABEL,
+                    getDocumentId(doc), null));
+        }
+        return instances;
+    }
+
+    /**
+     * Reads a byte at a position of the file, from the segment it is in
+     */
+    private byte readByte(long position) {
+        return segments_[(int) (position >>> segmentBits_)].get((int) (position & segmentMask_));
+    }
+
+    /**
+     * Reads a big-endian int at a position of the file, which may span two segments
+     */
+    private int readInt(long position) {
+        int value = 0;
+        for (int i = 0; i < 4; i++)
+            value = (value << 8) | (readByte(position + i) & 0xFF);
+        return value;
+    }
+
+    /**
+     * Reads a big-endian long at a position of the file, which may span two segments
+     */
+    private long readLong(long position) {
+        return ((long) readInt(position) << 32) | (readInt(position + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Reads a varint at a position with absolute gets, and moves the position after it
+     */
+    private int readVarInt(long[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = readByte(position[0]++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private String readString(long offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = readByte(offset + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    private static void writeVarInt(DataOutputStream output, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write(value);
+    }
+
+    /**
+     * Stream counting the bytes written to it in a long
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count_;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+            count_ = 0;
+        }
+
+        long getCount() {
+            return count_;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count_++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count_ += len;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Streaming reader of delimited files with RFC 4180 quoting: fields in double quotes may contain the separator, line
+ * breaks and doubled quotes. Only the requested columns are turned into strings, the other fields are skipped while
+ * scanning. The character buffer and the field builder are reused between records
+ */
+public class CsvReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Reader reader_;
+    private final char separator_;
+    private final boolean[] requested_;
+    private final String[] values_;
+    private final char[] buffer_;
+    private final StringBuilder field_;
+    private boolean skipComments_;
+    private boolean joinTrailingFields_;
+    private int position_;
+    private int limit_;
+    private int numFields_;
+
+    /**
+     * Creates a reader of the given columns of a delimited input
+     *
+     * @param reader    Input to read
+     * @param separator Character separating the fields
+     * @param columns   Columns to read, from 0
+     */
+    public CsvReader(Reader reader, char separator, int... columns) {
+        int numColumns = 0;
+        for (int column : columns)
+            numColumns = Math.max(numColumns, column + 1);
+        reader_ = reader;
+        separator_ = separator;
+        requested_ = new boolean[numColumns];
+        for (int column : columns)
+            requested_[column] = true;
+        values_ = new String[numColumns];
+        buffer_ = new char[BUFFER_SIZE];
+        field_ = new StringBuilder();
+        skipComments_ = false;
+        joinTrailingFields_ = false;
+        position_ = 0;
+        limit_ = 0;
+    }
+
+    /**
+     * Sets if empty lines and lines beginning with # are skipped, as comments
+     *
+     * @param skipComments Indicates if comment lines are skipped
+     */
+    public void setSkipComments(boolean skipComments) {
+        skipComments_ = skipComments;
+    }
+
+    /**
+     * Sets if the fields after the last requested column are kept in it, with their separators, so a last column of
+     * free text can contain the separator without quotes. The record then has at most that many fields
+     *
+     * @param joinTrailingFields Indicates if the trailing fields are joined to the last requested column
+     */
+    public void setJoinTrailingFields(boolean joinTrailingFields) {
+        joinTrailingFields_ = joinTrailingFields;
+    }
+
+    /**
+     * Reads the next record. Its requested columns are returned by {@link #get} until the next call
+     *
+     * @return False at the end of the input
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        int c = read();
+        while (skipComments_ && c != -1) {
+            if (c == '#') {
+                // Skip the rest of the line
+                while (c != '\n' && c != '\r' && c != -1)
+                    c = read();
+            } else if (c != '\n' && c != '\r')
+                break;
+            if (c == '\r' && peek() == '\n')
+                read();
+            c = read();
+        }
+        if (c == -1)
+            return false;
+
+        Arrays.fill(values_, "");
+        numFields_ = 0;
+        boolean joining = false;
+        while (true) {
+            boolean requested = numFields_ < requested_.length && requested_[numFields_];
+            if (!joining)
+                field_.setLength(0);
+            if (c == '"') {
+                // Quoted field, up to the closing quote. Characters after it are kept, as if they were quoted
+                c = read();
+                while (c != -1) {
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"')
+                            break;
+                    }
+                    if (requested)
+                        field_.append((char) c);
+                    c = read();
+                }
+            }
+            while (c != separator_ && c != '\n' && c != '\r' && c != -1) {
+                if (requested)
+                    field_.append((char) c);
+                c = read();
+            }
+
+            if (c == separator_ && joinTrailingFields_ && numFields_ == requested_.length - 1) {
+                // Keep the separator and parse the next field into the last column
+                field_.append(separator_);
+                joining = true;
+                c = read();
+                continue;
+            }
+
+            if (requested)
+                values_[numFields_] = field_.toString();
+            numFields_++;
+            if (c != separator_)
+                break;
+            c = read();
+        }
+
+        // End of the record, on \n, \r\n or \r
+        if (c == '\r' && peek() == '\n')
+            read();
+        return true;
+    }
+
+    /**
+     * Returns the value of a requested column of the record, or an empty string if the record does not have it
+     *
+     * @param column Requested column
+     * @return
+     */
+    public String get(int column) {
+        return values_[column];
+    }
+
+    /**
+     * Returns a copy of the values of the record, indexed by column. Columns not requested are null
+     *
+     * @return
+     */
+    public String[] getValues() {
+        String[] values = new String[values_.length];
+        for (int column = 0; column < values.length; column++) {
+            if (requested_[column])
+                values[column] = values_[column];
+        }
+        return values;
+    }
+
+    /**
+     * Returns the number of fields of the record, requested or not
+     *
+     * @return
+     */
+    public int getNumFields() {
+        return numFields_;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader_.close();
+    }
+
+    private int read() throws IOException {
+        if (position_ == limit_ && !fill())
+            return -1;
+        return buffer_[position_++];
+    }
+
+    private int peek() throws IOException {
+        if (position_ == limit_ && !fill())
+            return -1;
+        return buffer_[position_];
+    }
+
+    private boolean fill() throws IOException {
+        int read = reader_.read(buffer_, 0, buffer_.length);
+        if (read <= 0)
+            return false;
+        position_ = 0;
+        limit_ = read;
+        return true;
+    }
+}
@@ -0,0 +1,320 @@
+package main;
+
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.TopicAssignment;
+import cc.mallet.topics.WorkerRunnable;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.util.Randoms;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+
+/**
+ * Coordinator of the Gibbs sampling of a model by worker processes, as the sampler threads of Mallet but in other
+ * JVMs (approximate distributed LDA). The documents are split in contiguous shards, one per worker. In every
+ * iteration each worker samples its shard against the counts of the start of the iteration and sends the changes of
+ * its counts. The coordinator adds up the changes and sends them to all the workers, so every process starts the next
+ * iteration with the same counts. Hyperparameters are optimized here with the statistics of the workers, and the
+ * topic assignments are collected at the end, leaving the model as if it had been sampled in this process. They are
+ * also collected every few iterations to log the log likelihood of the model and, with early stopping, to check it
+ */
+public class DistributedTrainer {
+
+    public static final int DEFAULT_PORT = 7077;
+
+    static final int PROTOCOL_VERSION = 2;
+    // Messages to the workers
+    static final int SAMPLE = 1;
+    static final int UPDATE = 2;
+    static final int FINISH = 3;
+    static final int ASSIGNMENTS = 4;
+
+    private static final int ACCEPT_TIMEOUT_MILLIS = 120000;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ParallelTopicModel model_;
+    private final int numWorkers_;
+    private final int port_;
+    private boolean spawnWorkers_;
+    private PipelineMetrics metrics_;
+    private EarlyStopping earlyStopping_;
+
+    /**
+     * Creates a coordinator of the sampling of a model
+     *
+     * @param model      Model with instances and the parameters of the sampler
+     * @param numWorkers Number of worker processes
+     * @param port       Port the workers connect to on the loopback address, 0 for any free port if the workers are
+     *                   spawned
+     */
+    public DistributedTrainer(ParallelTopicModel model, int numWorkers, int port) {
+        model_ = model;
+        numWorkers_ = Math.max(1, numWorkers);
+        port_ = port;
+        spawnWorkers_ = false;
+        metrics_ = new PipelineMetrics();
+        earlyStopping_ = null;
+    }
+
+    /**
+     * Sets if the coordinator starts the worker processes on this machine, with the same Java and class path.
+     * Otherwise they are started separately with the worker option
+     *
+     * @param spawnWorkers Indicates if the workers are spawned
+     */
+    public void setSpawnWorkers(boolean spawnWorkers) {
+        spawnWorkers_ = spawnWorkers;
+    }
+
+    /**
+     * Sets the metrics the time of every iteration is recorded to
+     *
+     * @param metrics Metrics of the run
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        metrics_ = metrics;
+    }
+
+    /**
+     * Sets the early stopping checked every few iterations. Without it, all the iterations of the model run
+     *
+     * @param earlyStopping Early stopping of the training, or null
+     */
+    public void setEarlyStopping(EarlyStopping earlyStopping) {
+        earlyStopping_ = earlyStopping;
+    }
+
+    /**
+     * Waits for the workers and runs the iterations of the model
+     *
+     * @throws IOException
+     */
+    public void estimate() throws IOException {
+        ParallelTopicModel model = model_;
+        // The statistics of every worker are kept as the ones of a sampler thread
+        model.setNumThreads(numWorkers_);
+
+        ServerSocket serverSocket = new ServerSocket(port_, numWorkers_, InetAddress.getLoopbackAddress());
+        ArrayList<Process> processes = new ArrayList<Process>();
+        Socket[] sockets = new Socket[numWorkers_];
+        DataInputStream[] inputs = new DataInputStream[numWorkers_];
+        DataOutputStream[] outputs = new DataOutputStream[numWorkers_];
+        boolean finished = false;
+        try {
+            serverSocket.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
+            if (spawnWorkers_) {
+                for (int worker = 0; worker < numWorkers_; worker++)
+                    processes.add(spawnWorker(serverSocket.getLocalPort()));
+            }
+            System.out.println(String.format("Waiting for %d workers on port %d", numWorkers_, serverSocket.getLocalPort()));
+            for (int worker = 0; worker < numWorkers_; worker++) {
+                try {
+                    sockets[worker] = serverSocket.accept();
+                } catch (SocketTimeoutException e) {
+                    throw new IOException(String.format("Only %d of %d workers connected", worker, numWorkers_), e);
+                }
+                sockets[worker].setTcpNoDelay(true);
+                inputs[worker] = new DataInputStream(new BufferedInputStream(sockets[worker].getInputStream(), BUFFER_SIZE));
+                outputs[worker] = new DataOutputStream(new BufferedOutputStream(sockets[worker].getOutputStream(), BUFFER_SIZE));
+                int version = inputs[worker].readInt();
+                if (version != PROTOCOL_VERSION)
+                    throw new IOException("Worker protocol version " + version + " is not " + PROTOCOL_VERSION);
+            }
+
+            TopicWordCounts counts = new TopicWordCounts(model.numTypes, model.numTopics);
+            counts.addMalletCounts(model.typeTopicCounts, model.topicMask, model.topicBits);
+            for (int worker = 0; worker < numWorkers_; worker++) {
+                writeShard(outputs[worker], worker, counts);
+                outputs[worker].flush();
+            }
+            System.out.println(String.format("Sampling %d documents in %d workers", model.data.size(), numWorkers_));
+
+            WorkerRunnable[] statistics = newStatistics();
+            for (int iteration = 1; iteration <= model.numIterations; iteration++) {
+                long start = System.nanoTime();
+                boolean optimizing = iteration > model.burninPeriod && model.optimizeInterval != 0;
+                boolean collectStatistics = optimizing && iteration % model.saveSampleInterval == 0;
+                for (DataOutputStream output : outputs) {
+                    output.writeInt(SAMPLE);
+                    output.writeBoolean(collectStatistics);
+                    output.flush();
+                }
+
+                // Changes of all the workers
+                for (int worker = 0; worker < numWorkers_; worker++) {
+                    counts.readChanges(inputs[worker]);
+                    if (collectStatistics)
+                        readStatistics(inputs[worker], statistics[worker]);
+                }
+                for (DataOutputStream output : outputs) {
+                    output.writeInt(UPDATE);
+                    counts.writeChanges(output);
+                }
+                counts.applyChanges();
+
+                if (optimizing && iteration % model.optimizeInterval == 0) {
+                    // Beta is optimized with the counts of the model
+                    counts.toMalletCounts(model.typeTopicCounts, model.tokensPerTopic, model.topicBits);
+                    model.optimizeAlpha(statistics);
+                    model.optimizeBeta(statistics);
+                }
+                for (DataOutputStream output : outputs) {
+                    writeHyperparameters(output);
+                    output.flush();
+                }
+
+                double millis = (System.nanoTime() - start) / 1e6;
+                metrics_.recordIteration(millis);
+                if (iteration % 10 == 0)
+                    System.out.println(String.format("Iteration %d: %.0f ms", iteration, millis));
+
+                // Log likelihood, logged as Mallet does and checked by the early stopping
+                boolean logging = model.showTopicsInterval > 0 && iteration % model.showTopicsInterval == 0;
+                boolean checking = earlyStopping_ != null
+                        && (iteration % earlyStopping_.getCheckInterval() == 0 || iteration == model.numIterations);
+                if (logging || checking) {
+                    readTopicAssignments(inputs, outputs, ASSIGNMENTS);
+                    counts.toMalletCounts(model.typeTopicCounts, model.tokensPerTopic, model.topicBits);
+                    double logLikelihood = model.modelLogLikelihood();
+                    if (logging) {
+                        System.out.println(String.format("<%d> LL/token: %.5f", iteration, logLikelihood / model.totalTokens));
+                        metrics_.recordLogLikelihood(logLikelihood / model.totalTokens);
+                    }
+                    if (checking && earlyStopping_.isStopping(iteration, logLikelihood))
+                        break;
+                }
+            }
+
+            readTopicAssignments(inputs, outputs, FINISH);
+            model.buildInitialTypeTopicCounts();
+            finished = true;
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null)
+                    socket.close();
+            }
+            serverSocket.close();
+            for (Process process : processes) {
+                if (finished) {
+                    try {
+                        process.waitFor();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else
+                    process.destroy();
+            }
+        }
+    }
+
+    /**
+     * Asks the workers for the topic assignments of their shards and sets them in the documents of the model
+     *
+     * @param inputs  Inputs from the workers
+     * @param outputs Outputs to the workers
+     * @param message Message asking for the assignments, to finish or to go on sampling afterwards
+     * @throws IOException
+     */
+    private void readTopicAssignments(DataInputStream[] inputs, DataOutputStream[] outputs, int message) throws IOException {
+        ParallelTopicModel model = model_;
+        for (int worker = 0; worker < numWorkers_; worker++) {
+            outputs[worker].writeInt(message);
+            outputs[worker].flush();
+            int[] shard = getShard(worker);
+            for (int doc = shard[0]; doc < shard[1]; doc++) {
+                int[] topics = model.data.get(doc).topicSequence.getFeatures();
+                for (int position = 0; position < model.data.get(doc).topicSequence.getLength(); position++)
+                    topics[position] = inputs[worker].readInt();
+            }
+        }
+    }
+
+    /**
+     * Returns the first document and the end of the shard of a worker
+     *
+     * @param worker Worker, from 0
+     * @return
+     */
+    private int[] getShard(int worker) {
+        int numDocs = model_.data.size();
+        return new int[]{(int) ((long) numDocs * worker / numWorkers_), (int) ((long) numDocs * (worker + 1) / numWorkers_)};
+    }
+
+    /**
+     * Writes the parameters of the sampler, the documents of the shard of a worker with their topic assignments and
+     * the counts of all the documents
+     */
+    private void writeShard(DataOutputStream output, int worker, TopicWordCounts counts) throws IOException {
+        ParallelTopicModel model = model_;
+        output.writeInt(model.numTopics);
+        output.writeInt(model.numTypes);
+        output.writeInt(model.topicBits);
+        // Seeds differ between workers, as they sample different documents
+        output.writeInt(model.randomSeed == -1 ? -1 : model.randomSeed + worker);
+        output.writeInt(model.docLengthCounts.length);
+        writeHyperparameters(output);
+
+        int[] shard = getShard(worker);
+        output.writeInt(shard[1] - shard[0]);
+        for (int doc = shard[0]; doc < shard[1]; doc++) {
+            TopicAssignment document = model.data.get(doc);
+            FeatureSequence tokens = (FeatureSequence) document.instance.getData();
+            int[] topics = document.topicSequence.getFeatures();
+            output.writeInt(tokens.getLength());
+            for (int position = 0; position < tokens.getLength(); position++) {
+                output.writeInt(tokens.getIndexAtPosition(position));
+                output.writeInt(topics[position]);
+            }
+        }
+        counts.writeCounts(output);
+    }
+
+    private void writeHyperparameters(DataOutputStream output) throws IOException {
+        for (double alpha : model_.alpha)
+            output.writeDouble(alpha);
+        output.writeDouble(model_.alphaSum);
+        output.writeDouble(model_.beta);
+    }
+
+    /**
+     * Returns samplers that only hold the statistics of the workers to optimize alpha
+     */
+    private WorkerRunnable[] newStatistics() {
+        ParallelTopicModel model = model_;
+        WorkerRunnable[] statistics = new WorkerRunnable[numWorkers_];
+        for (int worker = 0; worker < numWorkers_; worker++) {
+            statistics[worker] = new WorkerRunnable(model.numTopics, model.alpha, model.alphaSum, model.beta,
+                    new Randoms(), model.data, model.typeTopicCounts, model.tokensPerTopic, 0, 0);
+            statistics[worker].initializeAlphaStatistics(model.docLengthCounts.length);
+        }
+        return statistics;
+    }
+
+    /**
+     * Adds the document length and topic histograms sent by a worker, which are cleared when alpha is optimized
+     */
+    private static void readStatistics(DataInputStream input, WorkerRunnable statistics) throws IOException {
+        int[] docLengthCounts = statistics.getDocLengthCounts();
+        for (int i = 0; i < docLengthCounts.length; i++)
+            docLengthCounts[i] += input.readInt();
+        for (int[] topicDocCounts : statistics.getTopicDocCounts()) {
+            for (int i = 0; i < topicDocCounts.length; i++)
+                topicDocCounts[i] += input.readInt();
+        }
+    }
+
+    /**
+     * Starts a worker process connecting to a port of the loopback address
+     */
+    private static Process spawnWorker(int port) throws IOException {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Main.class.getName(), "-worker", InetAddress.getLoopbackAddress().getHostAddress() + ":" + port);
+        builder.inheritIO();
+        return builder.start();
+    }
+}
@@ -0,0 +1,355 @@
+package main;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Set of the document ids seen, to find duplicates in inputs of any size with little memory. Numeric ids are kept as
+ * longs in a primitive set. Other ids are kept in memory only until there are enough of them, then they are sorted
+ * and spilled to a file with a Bloom filter and a sparse index. Only ids that pass the Bloom filter of a spilled file
+ * are looked up in it, reading one block. Spilled files of similar sizes are merged, so there are few of them
+ */
+public class DocumentIdSet implements Closeable {
+
+    private static final int DEFAULT_MAX_RECENT_IDS = 1 << 16;
+    // About 1% of false positives
+    private static final int BITS_PER_ID = 10;
+    private static final int NUM_HASHES = 7;
+    private static final int IDS_PER_BLOCK = 64;
+
+    private final LongHashSet numericIds_;
+    private final HashSet<String> recentIds_;
+    private final int maxRecentIds_;
+    private final ArrayList<SpilledIds> spilledIds_;
+    private File spillFolder_;
+    private int numSpills_;
+    private long size_;
+
+    /**
+     * Creates a new empty set
+     */
+    public DocumentIdSet() {
+        this(DEFAULT_MAX_RECENT_IDS);
+    }
+
+    /**
+     * Creates a new empty set
+     *
+     * @param maxRecentIds Number of non numeric ids kept in memory before spilling them to a file
+     */
+    public DocumentIdSet(int maxRecentIds) {
+        numericIds_ = new LongHashSet();
+        recentIds_ = new HashSet<String>();
+        maxRecentIds_ = maxRecentIds;
+        spilledIds_ = new ArrayList<SpilledIds>();
+        numSpills_ = 0;
+        size_ = 0;
+    }
+
+    public long size() {
+        return size_;
+    }
+
+    /**
+     * Adds an id to the set
+     *
+     * @param id Document id
+     * @return False if the id was already in the set
+     * @throws IOException
+     */
+    public boolean add(String id) throws IOException {
+        long numericId = AdviceCodeIndex.parseNumericId(id);
+        if (numericId >= 0) {
+            if (!numericIds_.add(numericId))
+                return false;
+            size_++;
+            return true;
+        }
+
+        if (recentIds_.contains(id))
+            return false;
+        long hash = hash(id);
+        for (SpilledIds spilled : spilledIds_) {
+            if (spilled.mightContain(hash) && spilled.contains(id))
+                return false;
+        }
+
+        recentIds_.add(id);
+        size_++;
+        if (recentIds_.size() >= maxRecentIds_)
+            spill();
+        return true;
+    }
+
+    /**
+     * Deletes the spilled files
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        for (SpilledIds spilled : spilledIds_)
+            spilled.delete();
+        spilledIds_.clear();
+        if (spillFolder_ != null)
+            spillFolder_.delete();
+    }
+
+    /**
+     * Writes the ids in memory to a new file and merges the last files while the previous one is not larger
+     */
+    private void spill() throws IOException {
+        if (spillFolder_ == null) {
+            spillFolder_ = Files.createTempDirectory("document_ids").toFile();
+            spillFolder_.deleteOnExit();
+        }
+
+        String[] ids = recentIds_.toArray(new String[0]);
+        Arrays.sort(ids);
+        int[] next = {0};
+        spilledIds_.add(SpilledIds.write(newSpillFile(), ids.length, () -> next[0] < ids.length ? ids[next[0]++] : null));
+        recentIds_.clear();
+
+        int last = spilledIds_.size() - 1;
+        while (last > 0 && spilledIds_.get(last - 1).size_ <= spilledIds_.get(last).size_) {
+            SpilledIds first = spilledIds_.get(last - 1);
+            SpilledIds second = spilledIds_.get(last);
+            DataInputStream firstInput = first.openStream();
+            DataInputStream secondInput = second.openStream();
+            try {
+                String[] heads = {SpilledIds.read(firstInput), SpilledIds.read(secondInput)};
+                // No id is in both files
+                SpilledIds merged = SpilledIds.write(newSpillFile(), first.size_ + second.size_, () -> {
+                    String id;
+                    if (heads[1] == null || (heads[0] != null && heads[0].compareTo(heads[1]) < 0)) {
+                        id = heads[0];
+                        heads[0] = SpilledIds.read(firstInput);
+                    } else {
+                        id = heads[1];
+                        heads[1] = SpilledIds.read(secondInput);
+                    }
+                    return id;
+                });
+                spilledIds_.remove(last);
+                spilledIds_.set(last - 1, merged);
+            } finally {
+                firstInput.close();
+                secondInput.close();
+            }
+            first.delete();
+            second.delete();
+            last--;
+        }
+    }
+
+    private File newSpillFile() {
+        File file = new File(spillFolder_, "ids_" + (numSpills_++) + ".dat");
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Returns a 64 bit hash of an id, FNV-1a mixed with the finalizer of MurmurHash3
+     */
+    private static long hash(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Source of the sorted ids written to a file
+     */
+    private interface IdSource {
+
+        /**
+         * Returns the next id, or null at the end
+         */
+        String next() throws IOException;
+    }
+
+    /**
+     * Sorted ids in a file, each one written as its length in bytes and its UTF-8 bytes. Keeps in memory the Bloom
+     * filter of the ids and the first id and the offset of each block
+     */
+    private static class SpilledIds {
+
+        private final File file_;
+        private final FileChannel channel_;
+        private final ByteBuffer block_;
+        private final long[] bits_;
+        private final long numBits_;
+        private final String[] blockIds_;
+        private final long[] blockOffsets_;
+        private final int size_;
+
+        private SpilledIds(File file, long[] bits, String[] blockIds, long[] blockOffsets, int size) throws IOException {
+            int maxBlockLength = 0;
+            for (int block = 0; block < blockIds.length; block++)
+                maxBlockLength = (int) Math.max(maxBlockLength, blockOffsets[block + 1] - blockOffsets[block]);
+            file_ = file;
+            channel_ = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            block_ = ByteBuffer.allocate(maxBlockLength);
+            bits_ = bits;
+            numBits_ = (long) bits.length * Long.SIZE;
+            blockIds_ = blockIds;
+            blockOffsets_ = blockOffsets;
+            size_ = size;
+        }
+
+        /**
+         * Writes sorted ids to a file
+         *
+         * @param file   File to write
+         * @param maxIds Maximum number of ids, to size the Bloom filter
+         * @param ids    Sorted ids
+         * @return
+         * @throws IOException
+         */
+        static SpilledIds write(File file, int maxIds, IdSource ids) throws IOException {
+            long[] bits = new long[Math.max(1, (int) (((long) maxIds * BITS_PER_ID + Long.SIZE - 1) / Long.SIZE))];
+            long numBits = (long) bits.length * Long.SIZE;
+            int numBlocks = (maxIds + IDS_PER_BLOCK - 1) / IDS_PER_BLOCK;
+            String[] blockIds = new String[numBlocks];
+            long[] blockOffsets = new long[numBlocks + 1];
+
+            int size = 0;
+            long offset = 0;
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            try {
+                String id;
+                while ((id = ids.next()) != null) {
+                    if (size % IDS_PER_BLOCK == 0) {
+                        blockIds[size / IDS_PER_BLOCK] = id;
+                        blockOffsets[size / IDS_PER_BLOCK] = offset;
+                    }
+                    long hash = hash(id);
+                    for (int i = 0; i < NUM_HASHES; i++) {
+                        long bit = bitIndex(hash, i, numBits);
+                        bits[(int) (bit >>> 6)] |= 1L << bit;
+                    }
+                    byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+                    output.writeInt(bytes.length);
+                    output.write(bytes);
+                    offset += Integer.BYTES + bytes.length;
+                    size++;
+                }
+            } finally {
+                output.close();
+            }
+
+            int usedBlocks = (size + IDS_PER_BLOCK - 1) / IDS_PER_BLOCK;
+            blockIds = Arrays.copyOf(blockIds, usedBlocks);
+            blockOffsets = Arrays.copyOf(blockOffsets, usedBlocks + 1);
+            blockOffsets[usedBlocks] = offset;
+            return new SpilledIds(file, bits, blockIds, blockOffsets, size);
+        }
+
+        /**
+         * Returns the next id of a stream of the file, or null at the end
+         *
+         * @param input Stream returned by {@link #openStream}
+         * @return
+         * @throws IOException
+         */
+        static String read(DataInputStream input) throws IOException {
+            int length;
+            try {
+                length = input.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        DataInputStream openStream() throws IOException {
+            return new DataInputStream(new BufferedInputStream(new FileInputStream(file_), 1 << 16));
+        }
+
+        /**
+         * Returns false if the id is not in the file for sure
+         *
+         * @param hash Hash of the id
+         * @return
+         */
+        boolean mightContain(long hash) {
+            for (int i = 0; i < NUM_HASHES; i++) {
+                long bit = bitIndex(hash, i, numBits_);
+                if ((bits_[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Returns if the id is in the file, reading the only block it can be in
+         *
+         * @param id Document id
+         * @return
+         * @throws IOException
+         */
+        boolean contains(String id) throws IOException {
+            int block = Arrays.binarySearch(blockIds_, id);
+            if (block >= 0)
+                return true;
+            // Block whose first id is the largest one before the id
+            block = -block - 2;
+            if (block < 0)
+                return false;
+
+            // One positional read of the block, whose ids are compared as bytes
+            block_.clear();
+            block_.limit((int) (blockOffsets_[block + 1] - blockOffsets_[block]));
+            long position = blockOffsets_[block];
+            while (block_.hasRemaining()) {
+                int read = channel_.read(block_, position);
+                if (read < 0)
+                    throw new EOFException(file_.getPath());
+                position += read;
+            }
+            byte[] bytes = block_.array();
+            byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+            int offset = 0;
+            int end = block_.position();
+            while (offset < end) {
+                int length = ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                        | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+                offset += Integer.BYTES;
+                if (Arrays.equals(bytes, offset, offset + length, idBytes, 0, idBytes.length))
+                    return true;
+                offset += length;
+            }
+            return false;
+        }
+
+        void delete() throws IOException {
+            channel_.close();
+            file_.delete();
+        }
+
+        /**
+         * Returns a bit of the Bloom filter of an id, combining the two halves of its hash
+         */
+        private static long bitIndex(long hash, int i, long numBits) {
+            long combined = (int) hash + (long) i * ((int) (hash >>> 32) | 1);
+            return Math.floorMod(combined, numBits);
+        }
+    }
+}
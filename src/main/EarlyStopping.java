@@ -0,0 +1,70 @@
+package main;
+
+/**
+ * Early stopping of a Gibbs sampling, checked every few iterations: stops when the log likelihood has not improved
+ * enough over the window of the last checks, or when the time budget runs out. Both the sampler of this process,
+ * run in chunks, and the {@link DistributedTrainer} check it
+ */
+public class EarlyStopping {
+
+    private final int checkInterval_;
+    private final int burninPeriod_;
+    private final double threshold_;
+    private final long budgetNanos_;
+    private final double[] logLikelihoods_;
+    private final long start_;
+    private int numChecks_;
+
+    /**
+     * Creates the early stopping of a training starting now
+     *
+     * @param trainingParameters Parameters with the convergence threshold, interval and window, and the time budget
+     */
+    public EarlyStopping(TrainingParameters trainingParameters) {
+        checkInterval_ = trainingParameters.getChunkLength();
+        burninPeriod_ = trainingParameters.getBurninPeriod();
+        threshold_ = trainingParameters.getConvergenceThreshold();
+        budgetNanos_ = trainingParameters.getTimeBudgetSeconds() * 1000000000L;
+        logLikelihoods_ = new double[trainingParameters.getConvergenceWindow() + 1];
+        start_ = System.nanoTime();
+        numChecks_ = 0;
+    }
+
+    /**
+     * Returns the number of iterations between checks, a multiple of the optimize interval
+     *
+     * @return
+     */
+    public int getCheckInterval() {
+        return checkInterval_;
+    }
+
+    /**
+     * Records the log likelihood of the model after a number of iterations, and indicates if the training stops
+     *
+     * @param iterations    Number of iterations run
+     * @param logLikelihood Log likelihood of the model
+     * @return
+     */
+    public boolean isStopping(int iterations, double logLikelihood) {
+        logLikelihoods_[numChecks_ % logLikelihoods_.length] = logLikelihood;
+        numChecks_++;
+        System.out.println(String.format("Iteration %d: log likelihood %.2f", iterations, logLikelihood));
+
+        // Relative improvement over the window, only once hyperparameters are being optimized
+        int window = logLikelihoods_.length - 1;
+        if (threshold_ > 0 && numChecks_ > window && iterations > burninPeriod_) {
+            double previous = logLikelihoods_[(numChecks_ - 1 - window) % logLikelihoods_.length];
+            double improvement = (logLikelihood - previous) / Math.abs(previous);
+            if (improvement < threshold_) {
+                System.out.println(String.format("Converged after %d iterations, improvement %.6f", iterations, improvement));
+                return true;
+            }
+        }
+        if (budgetNanos_ > 0 && System.nanoTime() - start_ >= budgetNanos_) {
+            System.out.println(String.format("Time budget reached after %d iterations", iterations));
+            return true;
+        }
+        return false;
+    }
+}
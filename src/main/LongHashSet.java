@@ -0,0 +1,90 @@
+package main;
+
+/**
+ * Set of long values with open addressing in a primitive array, so values take 8 bytes and adding does not allocate
+ */
+public class LongHashSet {
+
+    private static final int MIN_CAPACITY = 16;
+    // Marks a free slot. The empty value itself is kept apart
+    private static final long EMPTY = 0;
+
+    private long[] values_;
+    private boolean containsEmpty_;
+    private int size_;
+
+    /**
+     * Creates a new empty set
+     */
+    public LongHashSet() {
+        values_ = new long[MIN_CAPACITY];
+        containsEmpty_ = false;
+        size_ = 0;
+    }
+
+    public int size() {
+        return size_;
+    }
+
+    /**
+     * Returns if a value is in the set
+     *
+     * @param value Value
+     * @return
+     */
+    public boolean contains(long value) {
+        if (value == EMPTY)
+            return containsEmpty_;
+        int mask = values_.length - 1;
+        int slot = LongIntMap.hash(value) & mask;
+        while (values_[slot] != EMPTY) {
+            if (values_[slot] == value)
+                return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Adds a value to the set
+     *
+     * @param value Value
+     * @return False if the value was already in the set
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            if (containsEmpty_)
+                return false;
+            containsEmpty_ = true;
+            size_++;
+            return true;
+        }
+
+        int mask = values_.length - 1;
+        int slot = LongIntMap.hash(value) & mask;
+        while (values_[slot] != EMPTY) {
+            if (values_[slot] == value)
+                return false;
+            slot = (slot + 1) & mask;
+        }
+        values_[slot] = value;
+        // Keep the table at most three quarters full
+        if (++size_ * 4 > values_.length * 3)
+            resize(values_.length * 2);
+        return true;
+    }
+
+    private void resize(int capacity) {
+        long[] values = values_;
+        values_ = new long[capacity];
+        int mask = capacity - 1;
+        for (long value : values) {
+            if (value == EMPTY)
+                continue;
+            int slot = LongIntMap.hash(value) & mask;
+            while (values_[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            values_[slot] = value;
+        }
+    }
+}
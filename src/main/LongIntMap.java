@@ -0,0 +1,98 @@
+package main;
+
+/**
+ * Map from long keys to int values with open addressing in primitive arrays, so lookups do not allocate
+ */
+public class LongIntMap {
+
+    public static final int NO_VALUE = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys_;
+    private int[] values_;
+    private boolean[] used_;
+    private int size_;
+
+    /**
+     * Creates a new empty map
+     */
+    public LongIntMap() {
+        keys_ = new long[MIN_CAPACITY];
+        values_ = new int[MIN_CAPACITY];
+        used_ = new boolean[MIN_CAPACITY];
+        size_ = 0;
+    }
+
+    public int size() {
+        return size_;
+    }
+
+    /**
+     * Returns the value of a key, or NO_VALUE if the key is not in the map
+     *
+     * @param key Key
+     * @return
+     */
+    public int get(long key) {
+        int mask = keys_.length - 1;
+        int slot = hash(key) & mask;
+        while (used_[slot]) {
+            if (keys_[slot] == key)
+                return values_[slot];
+            slot = (slot + 1) & mask;
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Sets the value of a key
+     *
+     * @param key   Key
+     * @param value Value, not NO_VALUE
+     */
+    public void put(long key, int value) {
+        int mask = keys_.length - 1;
+        int slot = hash(key) & mask;
+        while (used_[slot]) {
+            if (keys_[slot] == key) {
+                values_[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys_[slot] = key;
+        values_[slot] = value;
+        used_[slot] = true;
+        // Keep the table at most half full
+        if (++size_ * 2 > keys_.length)
+            resize(keys_.length * 2);
+    }
+
+    private void resize(int capacity) {
+        long[] keys = keys_;
+        int[] values = values_;
+        boolean[] used = used_;
+        keys_ = new long[capacity];
+        values_ = new int[capacity];
+        used_ = new boolean[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (!used[i])
+                continue;
+            int slot = hash(keys[i]) & mask;
+            while (used_[slot])
+                slot = (slot + 1) & mask;
+            keys_[slot] = keys[i];
+            values_[slot] = values[i];
+            used_[slot] = true;
+        }
+    }
+
+    /**
+     * Mixes the bits of a key, so consecutive keys spread over the table
+     */
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
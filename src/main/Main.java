@@ -1,27 +1,112 @@
 package main;
 
+import cc.mallet.topics.ParallelTopicModel;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 
 public class Main {
 
     private static final String STOP_WORDS_PATH = "data/stopwords.txt";
     private static final String OTHER_WORDS_PATH = "data/otherwords.txt";
     private static final String DATA_ANALYSIS_FOLDER_PATH = "data_analysis";
+    private static final String BATCH_OUTPUT_FILENAME = "batch_topics.csv";
+    private static final String GIBBS_ENGINE = "gibbs";
+    private static final String ONLINE_ENGINE = "online";
 
     @Option(name = "-F", usage = "working folder")
     private String workingFolder_ = DATA_ANALYSIS_FOLDER_PATH;
     @Option(name = "-t", usage = "runs in training mode")
     private boolean trainingMode_ = false;
+    @Option(name = "-u", usage = "runs in update mode, adding the new documents of the training file to the trained model")
+    private boolean updateMode_ = false;
+    @Option(name = "-update-iterations", usage = "number of Gibbs sampling iterations in update mode")
+    private int numUpdateIterations_ = TrainingParameters.DEFAULT_UPDATE_ITERATIONS;
     @Option(name = "-f", usage = "training file name")
     private String trainingFile_ = "";
     @Option(name = "-n", usage = "number of topics to find")
     private int numTopics_ = 0;
     @Option(name = "-d", usage = "text of the document to test")
     private String document_ = "";
+    @Option(name = "-s", usage = "runs in server mode, reading one document per line from stdin and writing its topics to stdout")
+    private boolean serverMode_ = false;
+    @Option(name = "-b", usage = "file name of documents to test in batch, with rows id,text, or a binary corpus (.bin)")
+    private String batchFile_ = "";
+    @Option(name = "-o", usage = "output file name of the batch test")
+    private String batchOutputFile_ = BATCH_OUTPUT_FILENAME;
+    @Option(name = "-k", usage = "number of topics written per document in batch test")
+    private int numTopTopics_ = 3;
+    @Option(name = "-threads", usage = "number of sampler threads in training (default: available processors)")
+    private int numThreads_ = Runtime.getRuntime().availableProcessors();
+    @Option(name = "-iterations", usage = "number of Gibbs sampling iterations in training")
+    private int numIterations_ = TrainingParameters.DEFAULT_NUM_ITERATIONS;
+    @Option(name = "-alpha", usage = "sum of the Dirichlet prior over topics (default: number of topics)")
+    private double alphaSum_ = 0;
+    @Option(name = "-beta", usage = "Dirichlet prior over words")
+    private double beta_ = ParallelTopicModel.DEFAULT_BETA;
+    @Option(name = "-optimize-interval", usage = "iterations between hyperparameter optimizations, 0 to disable")
+    private int optimizeInterval_ = TrainingParameters.DEFAULT_OPTIMIZE_INTERVAL;
+    @Option(name = "-burn-in", usage = "iterations before the first hyperparameter optimization")
+    private int burninPeriod_ = TrainingParameters.DEFAULT_BURNIN_PERIOD;
+    @Option(name = "-seed", usage = "random seed of the sampler")
+    private int randomSeed_ = TrainingParameters.DEFAULT_RANDOM_SEED;
+    @Option(name = "-convergence", usage = "stops training when the relative log likelihood improvement over the window is below this value, 0 to disable")
+    private double convergenceThreshold_ = 0;
+    @Option(name = "-convergence-interval", usage = "iterations between log likelihood checks with early stopping, rounded up to a multiple of the optimize interval")
+    private int convergenceInterval_ = TrainingParameters.DEFAULT_CONVERGENCE_INTERVAL;
+    @Option(name = "-convergence-window", usage = "number of log likelihood checks the improvement is measured over")
+    private int convergenceWindow_ = TrainingParameters.DEFAULT_CONVERGENCE_WINDOW;
+    @Option(name = "-time-budget", usage = "stops training after this number of seconds, 0 to disable")
+    private long timeBudgetSeconds_ = 0;
+    @Option(name = "-scaling", usage = "comma separated numbers of sampler threads to measure in training, instead of training the model")
+    private String scalingThreadCounts_ = "";
+    @Option(name = "-sweep", usage = "numbers of topics to train and compare instead of training one model: comma separated list or range from-to:step")
+    private String sweepTopicCounts_ = "";
+    @Option(name = "-held-out", usage = "fraction of the documents held out of training to measure the log likelihood in a sweep")
+    private double heldOutFraction_ = 0.1;
+    @Option(name = "-w", usage = "number of worker threads cleaning or testing documents (default: available processors)")
+    private int numWorkers_ = Runtime.getRuntime().availableProcessors();
+    @Option(name = "-engine", usage = "training engine: gibbs (Gibbs sampling, default) or online (online variational Bayes in mini-batches)")
+    private String engine_ = GIBBS_ENGINE;
+    @Option(name = "-batch-size", usage = "number of documents per mini-batch of the online engine")
+    private int batchSize_ = OnlineLda.DEFAULT_BATCH_SIZE;
+    @Option(name = "-passes", usage = "number of passes over the documents of the online engine")
+    private int numPasses_ = TrainingParameters.DEFAULT_NUM_PASSES;
+    @Option(name = "-reuse-corpus", usage = "trains from the binary corpus of the last preprocessing, without preprocessing the training file")
+    private boolean reuseCorpus_ = false;
+    @Option(name = "-no-cache", usage = "preprocesses the training file even if its outputs are up to date")
+    private boolean noCache_ = false;
+    @Option(name = "-topic-files", usage = "generates the files per topic with the documents and advice codes after training")
+    private boolean topicFiles_ = false;
+    @Option(name = "-classifier", usage = "trains a classifier of the advice codes of every level on the topics of the documents after training")
+    private boolean trainClassifier_ = false;
+    @Option(name = "-classifier-epochs", usage = "number of passes over the documents training the advice code classifier")
+    private int numClassifierEpochs_ = AdviceCodeClassifier.DEFAULT_NUM_EPOCHS;
+    @Option(name = "-a", usage = "number of advice codes predicted per level in testing, if a classifier was trained")
+    private int numAdviceCodes_ = 3;
+    @Option(name = "-no-pre-analysis", usage = "does not write the pre analysis files with all the words and their counts")
+    private boolean noPreAnalysis_ = false;
+    @Option(name = "-metrics", usage = "writes the stage timings, Gibbs iterations, heap high-water mark and inference latencies to run reports in the working folder, and exposes them through JMX")
+    private boolean metricsEnabled_ = false;
+    @Option(name = "-processes", usage = "number of worker processes the Gibbs sampling is distributed to in training, 0 to sample in this process")
+    private int numWorkerProcesses_ = 0;
+    @Option(name = "-port", usage = "port the worker processes of the distributed training connect to on the loopback address")
+    private int coordinatorPort_ = DistributedTrainer.DEFAULT_PORT;
+    @Option(name = "-spawn-workers", usage = "starts the worker processes of the distributed training on this machine")
+    private boolean spawnWorkerProcesses_ = false;
+    @Option(name = "-worker", usage = "runs as a worker process of the distributed training, connecting to the coordinator at host:port")
+    private String coordinatorAddress_ = "";
+    @Option(name = "-write-training-file", usage = "writes the clean documents to the training data file, for debugging")
+    private boolean writeTrainingFile_ = false;
+
+    private final PipelineMetrics metrics_ = new PipelineMetrics();
 
     public void doMain(String[] args) {
         CmdLineParser parser = new CmdLineParser(this);
@@ -30,12 +115,18 @@ public class Main {
             // parse the arguments
             parser.parseArgument(args);
             // Validate
-            if (trainingMode_ && trainingFile_.isEmpty())
+            if (trainingMode_ && trainingFile_.isEmpty() && !reuseCorpus_)
                 throw new CmdLineException(parser, "Training file (-f) must be set in training mode", null);
-            if (!trainingMode_ && document_.isEmpty())
+            if (updateMode_ && trainingFile_.isEmpty())
+                throw new CmdLineException(parser, "Training file (-f) must be set in update mode", null);
+            if (!trainingMode_ && !updateMode_ && !serverMode_ && batchFile_.isEmpty() && document_.isEmpty() && coordinatorAddress_.isEmpty())
                 throw new CmdLineException(parser, "Document (-d) must be set for testing", null);
-            if(trainingMode_ && numTopics_ <=0)
+            if (!engine_.equals(GIBBS_ENGINE) && !engine_.equals(ONLINE_ENGINE))
+                throw new CmdLineException(parser, "Training engine (-engine) must be " + GIBBS_ENGINE + " or " + ONLINE_ENGINE, null);
+            if(trainingMode_ && numTopics_ <=0 && sweepTopicCounts_.isEmpty())
                 throw new CmdLineException(parser, "Number of topics (-n) must be greater than 0 in training mode", null);
+            if (!coordinatorAddress_.isEmpty() && coordinatorAddress_.lastIndexOf(':') <= 0)
+                throw new CmdLineException(parser, "Coordinator address (-worker) must be host:port", null);
 
         } catch (CmdLineException e) {
             System.err.println(e.getMessage());
@@ -47,11 +138,23 @@ public class Main {
         }
 
         try {
-            if (trainingMode_) {
+            if (metricsEnabled_)
+                metrics_.register();
+            if (!coordinatorAddress_.isEmpty()) {
+                work(coordinatorAddress_);
+            } else if (trainingMode_) {
                 train(trainingFile_, numTopics_);
+            } else if (updateMode_) {
+                update(trainingFile_);
+            } else if (serverMode_) {
+                serve();
+            } else if (!batchFile_.isEmpty()) {
+                testBatch(batchFile_);
             } else {
                 test(document_);
             }
+            if (metricsEnabled_)
+                metrics_.writeReports(workingFolder_);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -67,17 +170,158 @@ public class Main {
     private void train(String trainingFileName, int numTopics) throws Exception {
         System.out.println("Training started...");
         TopicModelling tfs = new TopicModelling(STOP_WORDS_PATH, OTHER_WORDS_PATH);
-        // Load advice code ids
-        tfs.loadAdviceCodeIds(Paths.get(workingFolder_, trainingFileName).toString(), ",", false);
-        // Generate training file
-        tfs.generateTrainingFile(workingFolder_, trainingFileName, ",", 0, 4, 5, 9, false, true, true, true);
+        tfs.setMetrics(metrics_);
+        tfs.setNumWorkers(numWorkers_);
+        tfs.setTrainingParameters(getTrainingParameters());
+        tfs.setUsePreprocessingCache(!noCache_);
+        tfs.setWritePreAnalysis(!noPreAnalysis_);
+        if (engine_.equals(ONLINE_ENGINE)) {
+            // The online engine streams the training data file instead of keeping the documents in memory
+            tfs.setWriteTrainingFile(true);
+            tfs.setImportTrainingInstances(false);
+        } else
+            tfs.setWriteTrainingFile(writeTrainingFile_);
+        if (!reuseCorpus_) {
+            // Load advice code ids
+            tfs.loadAdviceCodeIds(Paths.get(workingFolder_, trainingFileName).toString(), ",", false);
+            // Generate training file
+            tfs.generateTrainingFile(workingFolder_, trainingFileName, ",", 0, 4, 5, 9, false, true, true, true);
+        }
+        if (engine_.equals(ONLINE_ENGINE)) {
+            tfs.trainTopicModellingOnline(workingFolder_, Utils.DATA_TRAINING_FILENAME, numTopics);
+            System.out.println("Done");
+            return;
+        }
+        if (!sweepTopicCounts_.isEmpty()) {
+            // Train a model per number of topics, all at once within the thread budget
+            tfs.sweepTopicCounts(workingFolder_, Utils.DATA_TRAINING_FILENAME, parseTopicCounts(sweepTopicCounts_),
+                    Math.max(1, numThreads_), heldOutFraction_);
+            System.out.println("Done");
+            return;
+        }
+        if (!scalingThreadCounts_.isEmpty()) {
+            // Measure the time per iteration with each number of threads
+            String[] values = scalingThreadCounts_.split(",");
+            int[] threadCounts = new int[values.length];
+            for (int i = 0; i < values.length; i++)
+                threadCounts[i] = Integer.parseInt(values[i].trim());
+            tfs.reportTrainingScaling(workingFolder_, Utils.DATA_TRAINING_FILENAME, numTopics, threadCounts, numIterations_);
+            System.out.println("Done");
+            return;
+        }
         // Train the model
         tfs.trainTopicModellingUsingMallet(workingFolder_, Utils.DATA_TRAINING_FILENAME, numTopics);
+        // Advice codes are not loaded when the corpus is reused
+        if ((topicFiles_ || trainClassifier_) && reuseCorpus_)
+            tfs.loadAdviceCodeIds(Paths.get(workingFolder_, trainingFileName).toString(), ",", false);
         // Generate info per topic with advice codes
-        //tfs.generateFilePerTopic(Utils.TRAINING_FOLDER, Utils.TOPIC_COMPOSITION_MALLET, ",", folderPath + fileName);
+        if (topicFiles_)
+            tfs.generateFilePerTopic(workingFolder_, Utils.DATA_TRAINING_FILENAME);
+        // Predict advice codes from topics
+        if (trainClassifier_)
+            tfs.trainAdviceCodeClassifier(workingFolder_, numClassifierEpochs_);
+        System.out.println("Done");
+    }
+
+    /**
+     * Update the trained model with the documents of a file that are not in the model yet
+     *
+     * @param trainingFileName File containing the documents, old and new
+     * @throws Exception
+     */
+    private void update(String trainingFileName) throws Exception {
+        System.out.println("Update started...");
+        TopicModelling tfs = new TopicModelling(STOP_WORDS_PATH, OTHER_WORDS_PATH);
+        tfs.setMetrics(metrics_);
+        tfs.setNumWorkers(numWorkers_);
+        tfs.setTrainingParameters(getTrainingParameters());
+        tfs.setUsePreprocessingCache(!noCache_);
+        tfs.setWritePreAnalysis(!noPreAnalysis_);
+        tfs.setWriteTrainingFile(writeTrainingFile_);
+        // Load the trained model, its documents are skipped
+        tfs.loadTrainedModel(workingFolder_);
+        // Load advice code ids
+        tfs.loadAdviceCodeIds(Paths.get(workingFolder_, trainingFileName).toString(), ",", false);
+        // Import the new documents
+        tfs.generateTrainingFile(workingFolder_, trainingFileName, ",", 0, 4, 5, 9, false, true, true, true);
+        // Update the model
+        tfs.updateTopicModellingUsingMallet(workingFolder_, numUpdateIterations_);
+        // Predict advice codes from topics, with the new documents
+        if (trainClassifier_)
+            tfs.trainAdviceCodeClassifier(workingFolder_, numClassifierEpochs_);
+        System.out.println("Done");
+    }
+
+    /**
+     * Samples a shard of the documents of a distributed training until the coordinator finishes
+     *
+     * @param coordinatorAddress Address of the coordinator, host:port
+     * @throws Exception
+     */
+    private void work(String coordinatorAddress) throws Exception {
+        int separator = coordinatorAddress.lastIndexOf(':');
+        TrainingWorker worker = new TrainingWorker(coordinatorAddress.substring(0, separator),
+                Integer.parseInt(coordinatorAddress.substring(separator + 1)));
+        worker.run();
         System.out.println("Done");
     }
 
+    /**
+     * Parses numbers of topics given as a comma separated list, a range "from-to" or a range with a step
+     * "from-to:step", for example "5,10,20" or "5-30:5"
+     *
+     * @param value Numbers of topics
+     * @return
+     */
+    private static int[] parseTopicCounts(String value) {
+        ArrayList<Integer> topicCounts = new ArrayList<Integer>();
+        for (String part : value.split(",")) {
+            part = part.trim();
+            int separator = part.indexOf('-');
+            if (separator < 0) {
+                topicCounts.add(Integer.parseInt(part));
+                continue;
+            }
+            int stepSeparator = part.indexOf(':');
+            int from = Integer.parseInt(part.substring(0, separator).trim());
+            int to = Integer.parseInt(part.substring(separator + 1, stepSeparator < 0 ? part.length() : stepSeparator).trim());
+            int step = stepSeparator < 0 ? 1 : Math.max(1, Integer.parseInt(part.substring(stepSeparator + 1).trim()));
+            for (int numTopics = from; numTopics <= to; numTopics += step)
+                topicCounts.add(numTopics);
+        }
+
+        int[] values = new int[topicCounts.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = topicCounts.get(i);
+        return values;
+    }
+
+    /**
+     * Returns the training parameters set in the options
+     *
+     * @return
+     */
+    private TrainingParameters getTrainingParameters() {
+        TrainingParameters trainingParameters = new TrainingParameters();
+        trainingParameters.setNumThreads(numThreads_);
+        trainingParameters.setNumIterations(numIterations_);
+        trainingParameters.setAlphaSum(alphaSum_);
+        trainingParameters.setBeta(beta_);
+        trainingParameters.setOptimizeInterval(optimizeInterval_);
+        trainingParameters.setBurninPeriod(burninPeriod_);
+        trainingParameters.setRandomSeed(randomSeed_);
+        trainingParameters.setConvergenceThreshold(convergenceThreshold_);
+        trainingParameters.setConvergenceInterval(convergenceInterval_);
+        trainingParameters.setConvergenceWindow(convergenceWindow_);
+        trainingParameters.setTimeBudgetSeconds(timeBudgetSeconds_);
+        trainingParameters.setBatchSize(batchSize_);
+        trainingParameters.setNumPasses(numPasses_);
+        trainingParameters.setNumWorkerProcesses(numWorkerProcesses_);
+        trainingParameters.setCoordinatorPort(coordinatorPort_);
+        trainingParameters.setSpawnWorkerProcesses(spawnWorkerProcesses_);
+        return trainingParameters;
+    }
+
     /**
      * Test the model for topic modelling using a document
      *
@@ -87,11 +331,60 @@ public class Main {
     private void test(String document) throws Exception {
         System.out.println("Testing started...");
         TopicModelling tfs = new TopicModelling(STOP_WORDS_PATH, OTHER_WORDS_PATH);
+        tfs.setMetrics(metrics_);
         // Test the model using a document
-        tfs.testTopicModellingUsingMallet(workingFolder_, document);
+        tfs.testTopicModellingUsingMallet(workingFolder_, document, numAdviceCodes_);
+        System.out.println("Done");
+    }
+
+    /**
+     * Test the model for topic modelling using a file of documents
+     *
+     * @param batchFileName File containing the documents to test
+     * @throws Exception
+     */
+    private void testBatch(String batchFileName) throws Exception {
+        System.out.println("Batch testing started...");
+        TopicModelling tfs = new TopicModelling(STOP_WORDS_PATH, OTHER_WORDS_PATH);
+        tfs.setMetrics(metrics_);
+        TopicInferenceService inferenceService = tfs.loadInferenceService(workingFolder_);
+        inferenceService.setNumAdviceCodes(numAdviceCodes_);
+        String batchPath = Paths.get(workingFolder_, batchFileName).toString();
+        String outputPath = Paths.get(workingFolder_, batchOutputFile_).toString();
+        PipelineMetrics.Stage stage = metrics_.startStage("testBatch");
+        long firstInference = metrics_.getInferenceCount();
+        if (batchFileName.endsWith(BinaryCorpus.FILE_EXTENSION)) {
+            // Documents already preprocessed to a binary corpus
+            BinaryCorpus corpus = BinaryCorpus.open(new File(batchPath));
+            inferenceService.inferCorpus(corpus, outputPath, Math.max(1, numWorkers_), numTopTopics_);
+        } else
+            inferenceService.inferFile(batchPath, outputPath, Math.max(1, numWorkers_), numTopTopics_);
+        stage.addRows(metrics_.getInferenceCount() - firstInference);
+        stage.stop();
         System.out.println("Done");
     }
 
+    /**
+     * Serves documents to test from stdin until the input ends, keeping the model in memory
+     *
+     * @throws Exception
+     */
+    private void serve() throws Exception {
+        // stdout is used by the protocol, report progress on stderr
+        System.err.println("Loading model...");
+        TopicModelling tfs = new TopicModelling(STOP_WORDS_PATH, OTHER_WORDS_PATH);
+        tfs.setMetrics(metrics_);
+        TopicInferenceService inferenceService = tfs.loadInferenceService(workingFolder_);
+        inferenceService.setNumAdviceCodes(numAdviceCodes_);
+        System.err.println("Ready");
+        PipelineMetrics.Stage stage = metrics_.startStage("serve");
+        inferenceService.serve(new InputStreamReader(System.in, StandardCharsets.UTF_8),
+                new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        stage.addRows(metrics_.getInferenceCount());
+        stage.stop();
+        System.err.println("Done");
+    }
+
     /**
      * Main execution
      *
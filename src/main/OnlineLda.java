@@ -0,0 +1,311 @@
+package main;
+
+import java.util.Arrays;
+
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.Dirichlet;
+import cc.mallet.util.Randoms;
+
+/**
+ * Online variational Bayes for LDA (Hoffman, Blei and Bach, 2010). Documents are processed in mini-batches and only
+ * the variational parameters of the topic-word distributions are kept in memory, so memory does not grow with the
+ * number of documents
+ */
+public class OnlineLda {
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final double DEFAULT_TAU0 = 1024;
+    public static final double DEFAULT_KAPPA = 0.7;
+    private static final int MAX_DOCUMENT_ITERATIONS = 100;
+    private static final double DOCUMENT_CONVERGENCE = 0.001;
+    private static final double INITIAL_SHAPE = 100;
+
+    private final int numTopics_;
+    private final int numTypes_;
+    private final int numDocuments_;
+    private final double alpha_;
+    private final double eta_;
+    private final double tau0_;
+    private final double kappa_;
+    private final Randoms random_;
+    // Variational parameters of the topic-word distributions, topic x type
+    private final double[][] lambda_;
+    private final double[][] expElogBeta_;
+    private final double[][] sufficientStatistics_;
+    private int numUpdates_;
+
+    /**
+     * Creates a new model with random topic-word parameters
+     *
+     * @param numTopics    Number of topics to find
+     * @param numTypes     Number of different words in the corpus
+     * @param numDocuments Number of documents in the corpus
+     * @param alpha        Dirichlet prior over topics, per topic
+     * @param eta          Dirichlet prior over words
+     * @param randomSeed   Random seed, to replicate results
+     */
+    public OnlineLda(int numTopics, int numTypes, int numDocuments, double alpha, double eta, int randomSeed) {
+        numTopics_ = numTopics;
+        numTypes_ = numTypes;
+        numDocuments_ = numDocuments;
+        alpha_ = alpha;
+        eta_ = eta;
+        tau0_ = DEFAULT_TAU0;
+        kappa_ = DEFAULT_KAPPA;
+        random_ = new Randoms(randomSeed);
+        lambda_ = new double[numTopics][numTypes];
+        expElogBeta_ = new double[numTopics][numTypes];
+        sufficientStatistics_ = new double[numTopics][numTypes];
+        numUpdates_ = 0;
+
+        for (int topic = 0; topic < numTopics; topic++) {
+            for (int type = 0; type < numTypes; type++)
+                lambda_[topic][type] = random_.nextGamma(INITIAL_SHAPE, 1 / INITIAL_SHAPE);
+        }
+        updateExpElogBeta();
+    }
+
+    public int getNumTopics() {
+        return numTopics_;
+    }
+
+    public double getAlpha() {
+        return alpha_;
+    }
+
+    /**
+     * Updates the topic-word parameters with a mini-batch of documents, weighting it as if the whole corpus looked
+     * like the batch. The weight of every update decreases as (tau0 + updates)^-kappa
+     *
+     * @param batch     Documents of the batch
+     * @param batchSize Number of documents of the batch, from the start of the array
+     */
+    public void update(Document[] batch, int batchSize) {
+        if (batchSize == 0)
+            return;
+
+        for (double[] topicStatistics : sufficientStatistics_)
+            Arrays.fill(topicStatistics, 0);
+        for (int i = 0; i < batchSize; i++)
+            inferGamma(batch[i], true);
+
+        double rho = Math.pow(tau0_ + numUpdates_, -kappa_);
+        double scale = (double) numDocuments_ / batchSize;
+        for (int topic = 0; topic < numTopics_; topic++) {
+            double[] lambda = lambda_[topic];
+            double[] expElogBeta = expElogBeta_[topic];
+            double[] sufficientStatistics = sufficientStatistics_[topic];
+            for (int type = 0; type < numTypes_; type++) {
+                double estimate = eta_ + scale * sufficientStatistics[type] * expElogBeta[type];
+                lambda[type] = (1 - rho) * lambda[type] + rho * estimate;
+            }
+        }
+        numUpdates_++;
+        updateExpElogBeta();
+    }
+
+    /**
+     * Returns the proportion of every topic in a document
+     *
+     * @param document Document to infer the topics of
+     * @return
+     */
+    public double[] getTopicProportions(Document document) {
+        double[] gamma = inferGamma(document, false);
+        double sum = 0;
+        for (double value : gamma)
+            sum += value;
+        for (int topic = 0; topic < numTopics_; topic++)
+            gamma[topic] /= sum;
+        return gamma;
+    }
+
+    /**
+     * Returns the words of a topic with the highest weight
+     *
+     * @param topic    Topic
+     * @param numWords Number of words to return
+     * @return
+     */
+    public int[] getTopWords(int topic, int numWords) {
+        return Utils.topIndicesDesc(lambda_[topic], numWords);
+    }
+
+    /**
+     * Creates a Gibbs sampling inferencer with the expected word counts of every topic rounded to integers, so new
+     * documents can be tested as with a model trained by sampling
+     *
+     * @param alphabet Alphabet of the words
+     * @return
+     */
+    public TopicInferencer newInferencer(Alphabet alphabet) {
+        // Same packing of topic and count as ParallelTopicModel
+        int topicMask;
+        if (Integer.bitCount(numTopics_) == 1)
+            topicMask = numTopics_ - 1;
+        else
+            topicMask = Integer.highestOneBit(numTopics_) * 2 - 1;
+        int topicBits = Integer.bitCount(topicMask);
+
+        int[][] typeTopicCounts = new int[numTypes_][];
+        int[] tokensPerTopic = new int[numTopics_];
+        int[] counts = new int[numTopics_];
+        for (int type = 0; type < numTypes_; type++) {
+            int numNonZero = 0;
+            for (int topic = 0; topic < numTopics_; topic++) {
+                counts[topic] = (int) Math.round(Math.max(0, lambda_[topic][type] - eta_));
+                tokensPerTopic[topic] += counts[topic];
+                if (counts[topic] > 0)
+                    numNonZero++;
+            }
+
+            int[] topicCounts = new int[Math.max(1, numNonZero)];
+            int[] topics = Utils.sortIndicesDesc(toDoubles(counts));
+            for (int i = 0; i < numNonZero; i++)
+                topicCounts[i] = (counts[topics[i]] << topicBits) + topics[i];
+            typeTopicCounts[type] = topicCounts;
+        }
+
+        double[] alpha = new double[numTopics_];
+        Arrays.fill(alpha, alpha_);
+        return new TopicInferencer(typeTopicCounts, tokensPerTopic, alphabet, alpha, eta_, eta_ * numTypes_);
+    }
+
+    /**
+     * Fits the variational topic proportions of a document, and optionally adds its expected word counts to the
+     * sufficient statistics of the batch
+     *
+     * @param document                    Document
+     * @param addToSufficientStatistics Indicates if the statistics are updated
+     * @return
+     */
+    private double[] inferGamma(Document document, boolean addToSufficientStatistics) {
+        int[] types = document.types;
+        int[] counts = document.counts;
+        double[] gamma = new double[numTopics_];
+        for (int topic = 0; topic < numTopics_; topic++)
+            gamma[topic] = random_.nextGamma(INITIAL_SHAPE, 1 / INITIAL_SHAPE);
+        double[] expElogTheta = expDirichletExpectation(gamma);
+        double[] phiNorm = new double[types.length];
+        double[] lastGamma = new double[numTopics_];
+
+        for (int iteration = 0; iteration < MAX_DOCUMENT_ITERATIONS; iteration++) {
+            updatePhiNorm(types, expElogTheta, phiNorm);
+            System.arraycopy(gamma, 0, lastGamma, 0, numTopics_);
+
+            double change = 0;
+            for (int topic = 0; topic < numTopics_; topic++) {
+                double[] expElogBeta = expElogBeta_[topic];
+                double sum = 0;
+                for (int i = 0; i < types.length; i++)
+                    sum += counts[i] * expElogBeta[types[i]] / phiNorm[i];
+                gamma[topic] = alpha_ + expElogTheta[topic] * sum;
+                change += Math.abs(gamma[topic] - lastGamma[topic]);
+            }
+            expElogTheta = expDirichletExpectation(gamma);
+            if (change / numTopics_ < DOCUMENT_CONVERGENCE)
+                break;
+        }
+
+        if (addToSufficientStatistics) {
+            // Multiplied by expElogBeta when lambda is updated
+            updatePhiNorm(types, expElogTheta, phiNorm);
+            for (int topic = 0; topic < numTopics_; topic++) {
+                double[] sufficientStatistics = sufficientStatistics_[topic];
+                for (int i = 0; i < types.length; i++)
+                    sufficientStatistics[types[i]] += expElogTheta[topic] * counts[i] / phiNorm[i];
+            }
+        }
+        return gamma;
+    }
+
+    /**
+     * Computes the normalizer of the word-topic responsibilities of every word of a document
+     */
+    private void updatePhiNorm(int[] types, double[] expElogTheta, double[] phiNorm) {
+        for (int i = 0; i < types.length; i++) {
+            double sum = 1e-100;
+            for (int topic = 0; topic < numTopics_; topic++)
+                sum += expElogTheta[topic] * expElogBeta_[topic][types[i]];
+            phiNorm[i] = sum;
+        }
+    }
+
+    /**
+     * Recomputes exp(E[log beta]) from lambda
+     */
+    private void updateExpElogBeta() {
+        for (int topic = 0; topic < numTopics_; topic++) {
+            double[] expectation = expDirichletExpectation(lambda_[topic]);
+            System.arraycopy(expectation, 0, expElogBeta_[topic], 0, numTypes_);
+        }
+    }
+
+    /**
+     * Returns exp(E[log x]) for x following a Dirichlet distribution with the given parameters
+     *
+     * @param parameters Parameters of the Dirichlet distribution
+     * @return
+     */
+    private static double[] expDirichletExpectation(double[] parameters) {
+        double sum = 0;
+        for (double value : parameters)
+            sum += value;
+        double digammaSum = Dirichlet.digamma(sum);
+
+        double[] expectation = new double[parameters.length];
+        for (int i = 0; i < parameters.length; i++)
+            expectation[i] = Math.exp(Dirichlet.digamma(parameters[i]) - digammaSum);
+        return expectation;
+    }
+
+    private static double[] toDoubles(int[] values) {
+        double[] doubles = new double[values.length];
+        for (int i = 0; i < values.length; i++)
+            doubles[i] = values[i];
+        return doubles;
+    }
+
+    /**
+     * Document as a bag of words: the different word types and how many times each appears
+     */
+    public static class Document {
+        public final String name;
+        public final int[] types;
+        public final int[] counts;
+
+        /**
+         * Creates a bag of words from the tokens of a document. Tokens not in the alphabet are ignored
+         *
+         * @param name     Name of the document
+         * @param tokens   Tokens of the document
+         * @param alphabet Alphabet of the words
+         */
+        public Document(String name, String[] tokens, Alphabet alphabet) {
+            int[] ids = new int[tokens.length];
+            int numIds = 0;
+            for (String token : tokens) {
+                int id = alphabet.lookupIndex(token, false);
+                if (id >= 0)
+                    ids[numIds++] = id;
+            }
+            Arrays.sort(ids, 0, numIds);
+
+            int numTypes = 0;
+            for (int i = 0; i < numIds; i++) {
+                if (i == 0 || ids[i] != ids[i - 1])
+                    numTypes++;
+            }
+            this.name = name;
+            this.types = new int[numTypes];
+            this.counts = new int[numTypes];
+            int type = -1;
+            for (int i = 0; i < numIds; i++) {
+                if (i == 0 || ids[i] != ids[i - 1])
+                    types[++type] = ids[i];
+                counts[type]++;
+            }
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package main;
+
+import java.io.BufferedWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timing and throughput of the stages of a run: wall and CPU time, rows and tokens per second and the heap high-water
+ * mark of every stage, the time and log likelihood of the Gibbs iterations, and the latency percentiles of inference.
+ * Written as a JSON and a CSV run report, and exposed through JMX
+ */
+public class PipelineMetrics implements PipelineMetricsMBean {
+
+    public static final String OBJECT_NAME = "main:type=PipelineMetrics";
+    // Latencies in buckets of 1/8 of a power of two of nanoseconds, so percentiles are within 12.5%
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = 64 * SUB_BUCKETS;
+    private static final Pattern ITERATION_TIME = Pattern.compile("^\\d+m?s$");
+    private static final Pattern LOG_LIKELIHOOD = Pattern.compile("^<\\d+> LL/token: (\\S+)$");
+
+    private final ArrayList<Stage> stages_;
+    private final ArrayList<Double> iterationMillis_;
+    private final ArrayList<double[]> logLikelihoods_;
+    private final AtomicLongArray latencyBuckets_;
+    private long heapHighWater_;
+
+    /**
+     * Creates new empty metrics
+     */
+    public PipelineMetrics() {
+        stages_ = new ArrayList<Stage>();
+        iterationMillis_ = new ArrayList<Double>();
+        logLikelihoods_ = new ArrayList<double[]>();
+        latencyBuckets_ = new AtomicLongArray(NUM_BUCKETS);
+        heapHighWater_ = 0;
+    }
+
+    /**
+     * Starts measuring a stage. The heap high-water mark of the stage is measured from now
+     *
+     * @param name Name of the stage
+     * @return
+     */
+    public Stage startStage(String name) {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+        return new Stage(name);
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server, so they can be read with JMX while the run goes on
+     *
+     * @throws Exception
+     */
+    public void register() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name))
+            server.unregisterMBean(name);
+        server.registerMBean(this, name);
+    }
+
+    /**
+     * Records the time of a Gibbs iteration
+     *
+     * @param millis Time of the iteration, in milliseconds
+     */
+    public synchronized void recordIteration(double millis) {
+        iterationMillis_.add(millis);
+    }
+
+    /**
+     * Records the log likelihood per token of the model after the last recorded iteration
+     *
+     * @param logLikelihood Log likelihood per token
+     */
+    public synchronized void recordLogLikelihood(double logLikelihood) {
+        logLikelihoods_.add(new double[]{iterationMillis_.size(), logLikelihood});
+    }
+
+    /**
+     * Records the time to infer the topics of a document. Safe to call from several threads
+     *
+     * @param nanos Time of the inference, in nanoseconds
+     */
+    public void recordInferenceLatency(long nanos) {
+        latencyBuckets_.incrementAndGet(getBucket(Math.max(0, nanos)));
+    }
+
+    /**
+     * Starts recording the time of every Gibbs iteration, from the time between the messages the Mallet sampler logs
+     * at the end of every iteration, and the log likelihood it logs every 10 iterations. The logger is set to log the
+     * fine messages of the iterations, and only its messages of info level or above reach the parent handlers, as
+     * before. Closing the returned handler stops recording and restores the logger
+     *
+     * @param logger Logger of the sampler
+     * @return
+     */
+    public Handler recordSamplerLog(Logger logger) {
+        Level level = logger.getLevel();
+        boolean useParentHandlers = logger.getUseParentHandlers();
+        Logger parent = logger.getParent();
+        Handler handler = new Handler() {
+            private Instant lastIteration_ = Instant.now();
+
+            @Override
+            public void publish(LogRecord record) {
+                if (useParentHandlers && parent != null && record.getLevel().intValue() >= Level.INFO.intValue())
+                    parent.log(record);
+
+                String message = record.getMessage() == null ? "" : record.getMessage().trim();
+                if (ITERATION_TIME.matcher(message).matches()) {
+                    Instant instant = record.getInstant();
+                    recordIteration((instant.getEpochSecond() - lastIteration_.getEpochSecond()) * 1e3
+                            + (instant.getNano() - lastIteration_.getNano()) / 1e6);
+                    lastIteration_ = instant;
+                    return;
+                }
+                Matcher matcher = LOG_LIKELIHOOD.matcher(message);
+                if (matcher.matches())
+                    recordLogLikelihood(Double.parseDouble(matcher.group(1)));
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+                logger.removeHandler(this);
+                logger.setLevel(level);
+                logger.setUseParentHandlers(useParentHandlers);
+            }
+        };
+        logger.addHandler(handler);
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.FINE);
+        return handler;
+    }
+
+    /**
+     * Writes the run report as JSON and as CSV, with rows "section,name,metric,value", to a folder
+     *
+     * @param folderPath Folder to write the reports to
+     * @throws Exception
+     */
+    public void writeReports(String folderPath) throws Exception {
+        BufferedWriter bwOutput = null;
+        try {
+            bwOutput = Utils.getBufferedWriter(folderPath, Utils.RUN_REPORT_JSON_FILENAME, false);
+            Utils.writeLine(bwOutput, getJsonReport());
+        } finally {
+            Utils.closeBufferedWriter(bwOutput);
+        }
+
+        bwOutput = null;
+        try {
+            bwOutput = Utils.getBufferedWriter(folderPath, Utils.RUN_REPORT_CSV_FILENAME, false);
+            Utils.writeLine(bwOutput, "section,name,metric,value");
+            for (Stage stage : getStages()) {
+                writeCsvLine(bwOutput, "stage", stage.name_, "wall_seconds", stage.wallNanos_ / 1e9);
+                writeCsvLine(bwOutput, "stage", stage.name_, "cpu_seconds", stage.cpuNanos_ / 1e9);
+                writeCsvLine(bwOutput, "stage", stage.name_, "rows", stage.rows_);
+                writeCsvLine(bwOutput, "stage", stage.name_, "tokens", stage.tokens_);
+                writeCsvLine(bwOutput, "stage", stage.name_, "rows_per_second", stage.getRowsPerSecond());
+                writeCsvLine(bwOutput, "stage", stage.name_, "tokens_per_second", stage.getTokensPerSecond());
+                writeCsvLine(bwOutput, "stage", stage.name_, "heap_high_water_bytes", stage.heapHighWater_);
+            }
+            synchronized (this) {
+                for (int i = 0; i < iterationMillis_.size(); i++)
+                    writeCsvLine(bwOutput, "iteration", String.valueOf(i + 1), "millis", iterationMillis_.get(i));
+                for (double[] logLikelihood : logLikelihoods_)
+                    writeCsvLine(bwOutput, "iteration", String.valueOf((int) logLikelihood[0]), "log_likelihood_per_token", logLikelihood[1]);
+            }
+            writeCsvLine(bwOutput, "inference", "latency", "count", getInferenceCount());
+            writeCsvLine(bwOutput, "inference", "latency", "p50_micros", getInferenceLatencyP50Micros());
+            writeCsvLine(bwOutput, "inference", "latency", "p90_micros", getInferenceLatencyP90Micros());
+            writeCsvLine(bwOutput, "inference", "latency", "p99_micros", getInferenceLatencyP99Micros());
+            writeCsvLine(bwOutput, "inference", "latency", "max_micros", getInferenceLatencyMaxMicros());
+            writeCsvLine(bwOutput, "memory", "heap", "high_water_bytes", getHeapHighWaterBytes());
+        } finally {
+            Utils.closeBufferedWriter(bwOutput);
+        }
+    }
+
+    @Override
+    public String[] getStageNames() {
+        Stage[] stages = getStages();
+        String[] names = new String[stages.length];
+        for (int i = 0; i < stages.length; i++)
+            names[i] = stages[i].name_;
+        return names;
+    }
+
+    @Override
+    public double[] getStageWallSeconds() {
+        Stage[] stages = getStages();
+        double[] values = new double[stages.length];
+        for (int i = 0; i < stages.length; i++)
+            values[i] = stages[i].wallNanos_ / 1e9;
+        return values;
+    }
+
+    @Override
+    public double[] getStageCpuSeconds() {
+        Stage[] stages = getStages();
+        double[] values = new double[stages.length];
+        for (int i = 0; i < stages.length; i++)
+            values[i] = stages[i].cpuNanos_ / 1e9;
+        return values;
+    }
+
+    @Override
+    public double[] getStageRowsPerSecond() {
+        Stage[] stages = getStages();
+        double[] values = new double[stages.length];
+        for (int i = 0; i < stages.length; i++)
+            values[i] = stages[i].getRowsPerSecond();
+        return values;
+    }
+
+    @Override
+    public double[] getStageTokensPerSecond() {
+        Stage[] stages = getStages();
+        double[] values = new double[stages.length];
+        for (int i = 0; i < stages.length; i++)
+            values[i] = stages[i].getTokensPerSecond();
+        return values;
+    }
+
+    @Override
+    public synchronized long getHeapHighWaterBytes() {
+        // Peaks since the start of the running stage, or of the run if no stage was started
+        return Math.max(heapHighWater_, getHeapPeak());
+    }
+
+    @Override
+    public synchronized int getGibbsIterations() {
+        return iterationMillis_.size();
+    }
+
+    @Override
+    public synchronized double getMeanIterationMillis() {
+        double total = 0;
+        for (double millis : iterationMillis_)
+            total += millis;
+        return iterationMillis_.isEmpty() ? 0 : total / iterationMillis_.size();
+    }
+
+    @Override
+    public synchronized double getLastLogLikelihood() {
+        return logLikelihoods_.isEmpty() ? 0 : logLikelihoods_.get(logLikelihoods_.size() - 1)[1];
+    }
+
+    @Override
+    public long getInferenceCount() {
+        long count = 0;
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++)
+            count += latencyBuckets_.get(bucket);
+        return count;
+    }
+
+    @Override
+    public double getInferenceLatencyP50Micros() {
+        return getLatencyPercentile(0.5) / 1e3;
+    }
+
+    @Override
+    public double getInferenceLatencyP90Micros() {
+        return getLatencyPercentile(0.9) / 1e3;
+    }
+
+    @Override
+    public double getInferenceLatencyP99Micros() {
+        return getLatencyPercentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getInferenceLatencyMaxMicros() {
+        return getLatencyPercentile(1) / 1e3;
+    }
+
+    @Override
+    public String getJsonReport() {
+        StringBuilder sb = new StringBuilder("{\n  \"stages\": [");
+        Stage[] stages = getStages();
+        for (int i = 0; i < stages.length; i++) {
+            Stage stage = stages[i];
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append(String.format(Locale.ROOT, "    {\"name\": \"%s\", \"wall_seconds\": %.6f, \"cpu_seconds\": %.6f, "
+                            + "\"rows\": %d, \"tokens\": %d, \"rows_per_second\": %.2f, \"tokens_per_second\": %.2f, "
+                            + "\"heap_high_water_bytes\": %d}", escapeJson(stage.name_), stage.wallNanos_ / 1e9,
+                    stage.cpuNanos_ / 1e9, stage.rows_, stage.tokens_, stage.getRowsPerSecond(),
+                    stage.getTokensPerSecond(), stage.heapHighWater_));
+        }
+        sb.append(stages.length == 0 ? "],\n" : "\n  ],\n");
+
+        synchronized (this) {
+            sb.append(String.format(Locale.ROOT, "  \"gibbs\": {\"iterations\": %d, \"mean_iteration_millis\": %.3f, \"iteration_millis\": [",
+                    iterationMillis_.size(), getMeanIterationMillis()));
+            for (int i = 0; i < iterationMillis_.size(); i++)
+                sb.append(i == 0 ? "" : ", ").append(String.format(Locale.ROOT, "%.3f", iterationMillis_.get(i)));
+            sb.append("], \"log_likelihood_per_token\": [");
+            for (int i = 0; i < logLikelihoods_.size(); i++) {
+                sb.append(i == 0 ? "" : ", ").append(String.format(Locale.ROOT, "{\"iteration\": %d, \"value\": %.5f}",
+                        (int) logLikelihoods_.get(i)[0], logLikelihoods_.get(i)[1]));
+            }
+            sb.append("]},\n");
+        }
+
+        sb.append(String.format(Locale.ROOT, "  \"inference\": {\"count\": %d, \"p50_micros\": %.1f, \"p90_micros\": %.1f, "
+                        + "\"p99_micros\": %.1f, \"max_micros\": %.1f},\n", getInferenceCount(), getInferenceLatencyP50Micros(),
+                getInferenceLatencyP90Micros(), getInferenceLatencyP99Micros(), getInferenceLatencyMaxMicros()));
+        sb.append(String.format(Locale.ROOT, "  \"heap_high_water_bytes\": %d\n}", getHeapHighWaterBytes()));
+        return sb.toString();
+    }
+
+    private synchronized Stage[] getStages() {
+        return stages_.toArray(new Stage[0]);
+    }
+
+    private synchronized void addStage(Stage stage) {
+        stages_.add(stage);
+        heapHighWater_ = Math.max(heapHighWater_, stage.heapHighWater_);
+    }
+
+    /**
+     * Returns the latency below which a fraction of the inferences are, as the upper bound of its bucket, in
+     * nanoseconds
+     *
+     * @param fraction Fraction of the inferences, from 0 to 1
+     * @return
+     */
+    private long getLatencyPercentile(double fraction) {
+        long[] counts = new long[NUM_BUCKETS];
+        long total = 0;
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            counts[bucket] = latencyBuckets_.get(bucket);
+            total += counts[bucket];
+        }
+        if (total == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(fraction * total));
+        long cumulative = 0;
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            cumulative += counts[bucket];
+            if (cumulative >= target)
+                return getBucketUpperBound(bucket);
+        }
+        return getBucketUpperBound(NUM_BUCKETS - 1);
+    }
+
+    private static int getBucket(long nanos) {
+        if (nanos < SUB_BUCKETS)
+            return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long getBucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1L) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Returns the sum of the peak usage of the heap memory pools since their last reset
+     */
+    private static long getHeapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    /**
+     * Returns the CPU time of the process, of all its threads, or -1 if the JVM does not report it
+     */
+    private static long getProcessCpuNanos() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        return -1;
+    }
+
+    private static void writeCsvLine(BufferedWriter bw, String section, String name, String metric, double value) throws Exception {
+        Utils.writeLine(bw, String.format(Locale.ROOT, "%s,%s,%s,%s", section, name, metric,
+                value == Math.rint(value) && Math.abs(value) < 1e15 ? String.valueOf((long) value) : String.valueOf(value)));
+    }
+
+    private static String escapeJson(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * Stage of a run being measured. Rows and tokens are added while it runs, and it is added to the metrics when it
+     * stops
+     */
+    public class Stage {
+        private final String name_;
+        private final long startNanos_;
+        private final long startCpuNanos_;
+        private long wallNanos_;
+        private long cpuNanos_;
+        private long rows_;
+        private long tokens_;
+        private long heapHighWater_;
+
+        private Stage(String name) {
+            name_ = name;
+            startNanos_ = System.nanoTime();
+            startCpuNanos_ = getProcessCpuNanos();
+        }
+
+        public void addRows(long rows) {
+            rows_ += rows;
+        }
+
+        public void addTokens(long tokens) {
+            tokens_ += tokens;
+        }
+
+        /**
+         * Stops measuring the stage and adds it to the metrics
+         */
+        public void stop() {
+            wallNanos_ = System.nanoTime() - startNanos_;
+            long cpuNanos = getProcessCpuNanos();
+            cpuNanos_ = cpuNanos < 0 || startCpuNanos_ < 0 ? 0 : cpuNanos - startCpuNanos_;
+            heapHighWater_ = getHeapPeak();
+            addStage(this);
+        }
+
+        private double getRowsPerSecond() {
+            return wallNanos_ == 0 ? 0 : rows_ / (wallNanos_ / 1e9);
+        }
+
+        private double getTokensPerSecond() {
+            return wallNanos_ == 0 ? 0 : tokens_ / (wallNanos_ / 1e9);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package main;
+
+/**
+ * Metrics of the pipeline exposed through JMX, registered as {@link PipelineMetrics#OBJECT_NAME}
+ */
+public interface PipelineMetricsMBean {
+
+    String[] getStageNames();
+
+    double[] getStageWallSeconds();
+
+    double[] getStageCpuSeconds();
+
+    double[] getStageRowsPerSecond();
+
+    double[] getStageTokensPerSecond();
+
+    long getHeapHighWaterBytes();
+
+    int getGibbsIterations();
+
+    double getMeanIterationMillis();
+
+    double getLastLogLikelihood();
+
+    long getInferenceCount();
+
+    double getInferenceLatencyP50Micros();
+
+    double getInferenceLatencyP90Micros();
+
+    double getInferenceLatencyP99Micros();
+
+    double getInferenceLatencyMaxMicros();
+
+    String getJsonReport();
+}
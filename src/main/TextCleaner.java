@@ -0,0 +1,371 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reusable text cleaner. Stop words and other words are removed with a {@link WordFilter}, the url and email patterns
+ * are compiled once and only run on strings that can contain them, and the rest of the cleaning is done in one scan,
+ * so cleaning a string does not compile any regex. Produces the same output as {@link Utils#cleanString}
+ */
+public class TextCleaner {
+
+    private static final Pattern URL_PATTERN = Pattern.compile(Utils.URL_REGEX, Pattern.CASE_INSENSITIVE);
+    private static final Pattern EMAIL_PATTERN = Pattern.compile(Utils.EMAIL_REGEX, Pattern.CASE_INSENSITIVE);
+    private static final Pattern TOKEN_PATTERN = Pattern.compile(Utils.TOKEN_REGEX);
+    private static final int MIN_TOKEN_LENGTH = 3;
+    private static final String[] NO_TOKENS = new String[0];
+
+    private final WordFilter stopWordsFilter_;
+    private final WordFilter otherWordsFilter_;
+
+    /**
+     * Creates a new text cleaner for the given stop words and other words
+     *
+     * @param stopWords  Stop words to remove
+     * @param otherWords Other words to remove
+     */
+    public TextCleaner(List<String> stopWords, List<String> otherWords) {
+        stopWordsFilter_ = new WordFilter(stopWords);
+        otherWordsFilter_ = new WordFilter(otherWords);
+    }
+
+    /**
+     * Lowercases a value before cleaning it. Training and inference both lowercase with this method, so a document is
+     * cleaned and split in the same words in both
+     *
+     * @param value Value read from an input
+     * @return
+     */
+    public static String toLowerCase(String value) {
+        return value.toLowerCase();
+    }
+
+    /**
+     * Cleans a string of punctuation, stop words, other words and urls, and adds the remaining words to the map
+     *
+     * @param value        Value to clean
+     * @param wordCountMap Map with the count per word
+     * @return
+     */
+    public String clean(String value, HashMap<String, Integer> wordCountMap) {
+        value = clean(value);
+        addWordCounts(value, wordCountMap);
+        return value;
+    }
+
+    /**
+     * Adds the words of a clean string to the map
+     *
+     * @param value        Clean value, with words separated by a single space
+     * @param wordCountMap Map with the count per word
+     */
+    public static void addWordCounts(String value, HashMap<String, Integer> wordCountMap) {
+        int start = 0;
+        int end = value.indexOf(' ');
+        while (end >= 0) {
+            wordCountMap.merge(value.substring(start, end), 1, Integer::sum);
+            start = end + 1;
+            end = value.indexOf(' ', start);
+        }
+        wordCountMap.merge(value.substring(start), 1, Integer::sum);
+    }
+
+    /**
+     * Cleans a string of punctuation, stop words, other words and urls
+     *
+     * @param value Value to clean
+     * @return
+     */
+    public String clean(String value) {
+        // Remove stop words
+        value = stopWordsFilter_.remove(value);
+
+        // Remove other words
+        value = otherWordsFilter_.remove(value);
+
+        // Remove URLs and emails, which can only be found with a colon and an at sign
+        if (value.indexOf(':') >= 0)
+            value = URL_PATTERN.matcher(value).replaceAll(" ");
+        if (value.indexOf('@') >= 0)
+            value = EMAIL_PATTERN.matcher(value).replaceAll(" ");
+
+        // Remove numbers, punctuation, pounds sign, words with only one character and extra spaces
+        return removeSymbols(value);
+    }
+
+    /**
+     * Removes numbers, punctuation, the pounds sign, words with only one character and extra spaces in one scan of a
+     * string. Each step of {@link Utils#cleanString} after the emails is a stage of a {@link SymbolScan}, which gets
+     * the characters the previous stage outputs, so the result is the same as replacing the patterns one by one
+     *
+     * @param value Value without urls and emails
+     * @return
+     */
+    static String removeSymbols(String value) {
+        // Numbers and punctuation become spaces, so they are trimmed with them
+        int start = 0;
+        int end = value.length();
+        while (start < end && isTrimmedSymbol(value.charAt(start)))
+            start++;
+        while (end > start && isTrimmedSymbol(value.charAt(end - 1)))
+            end--;
+
+        SymbolScan scan = new SymbolScan(end - start);
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (isDigit(c)) {
+                // A number is replaced by one space
+                while (i + 1 < end && isDigit(value.charAt(i + 1)))
+                    i++;
+                scan.put(' ');
+            } else if (isPunctuation(c) || c == '£')
+                scan.put(' ');
+            else
+                scan.put(c);
+        }
+        return scan.finish();
+    }
+
+    /**
+     * Splits a clean string in the tokens the import pipe would find with {@link Utils#TOKEN_REGEX}. Words with only
+     * letters are taken as they are, or dropped if too short, so the regex only runs on the other words
+     *
+     * @param value Clean value, with words separated by a single space
+     * @return
+     */
+    public static String[] tokenize(String value) {
+        if (value.isEmpty())
+            return NO_TOKENS;
+
+        ArrayList<String> tokens = new ArrayList<String>();
+        int start = 0;
+        while (start <= value.length()) {
+            int end = value.indexOf(' ', start);
+            if (end < 0)
+                end = value.length();
+
+            if (isLetters(value, start, end)) {
+                if (end - start >= MIN_TOKEN_LENGTH)
+                    tokens.add(value.substring(start, end));
+            } else {
+                Matcher matcher = TOKEN_PATTERN.matcher(value).region(start, end);
+                while (matcher.find())
+                    tokens.add(matcher.group());
+            }
+            start = end + 1;
+        }
+        return tokens.toArray(NO_TOKENS);
+    }
+
+    /**
+     * Indicates if the characters between start and end are all letters
+     */
+    private static boolean isLetters(String value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isLetter(value.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Digit as defined by the regex \d
+     */
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Punctuation as defined by the regex \p{Punct}
+     */
+    private static boolean isPunctuation(char c) {
+        return (c >= '!' && c <= '/') || (c >= ':' && c <= '@') || (c >= '[' && c <= '`') || (c >= '{' && c <= '~');
+    }
+
+    /**
+     * Word character as defined by the regex \w, once numbers and punctuation are removed
+     */
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * Character removed by {@link String#trim} once numbers and punctuation are replaced by spaces
+     */
+    private static boolean isTrimmedSymbol(char c) {
+        return c <= ' ' || isDigit(c) || isPunctuation(c);
+    }
+
+    /**
+     * Line terminator the regex $ can match before at the end of a trimmed string
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Stages of {@link #removeSymbols} after the numbers and punctuation, each one holding the few characters it
+     * needs to see before deciding what to output:
+     * <ul>
+     * <li>Two passes of \s\w\s replaced by a space. A match ends a pass over its last space, so each pass removes
+     * every other word in a run of single characters, as the regex does</li>
+     * <li>^\w\s replaced by a space, on the first two characters</li>
+     * <li>\s\w$ replaced by a space, on the last characters</li>
+     * <li>Trim, and runs of \s replaced by a space, written to the output</li>
+     * </ul>
+     */
+    private static class SymbolScan {
+
+        private static final int NUM_SINGLE_CHARACTER_PASSES = 2;
+
+        private final StringBuilder output_;
+        private final char[][] singleHeld_;
+        private final int[] numSingleHeld_;
+        private char startHeld_;
+        private int numStartSeen_;
+        private final char[] endHeld_;
+        private int numEndHeld_;
+        private int trimmedLength_;
+
+        SymbolScan(int capacity) {
+            output_ = new StringBuilder(capacity);
+            singleHeld_ = new char[NUM_SINGLE_CHARACTER_PASSES][2];
+            numSingleHeld_ = new int[NUM_SINGLE_CHARACTER_PASSES];
+            numStartSeen_ = 0;
+            endHeld_ = new char[3];
+            numEndHeld_ = 0;
+            trimmedLength_ = 0;
+        }
+
+        /**
+         * Adds the next character without numbers and punctuation
+         */
+        void put(char c) {
+            putSingle(0, c);
+        }
+
+        /**
+         * Outputs the characters held by every stage and returns the clean string
+         */
+        String finish() {
+            for (int pass = 0; pass < NUM_SINGLE_CHARACTER_PASSES; pass++) {
+                int numHeld = numSingleHeld_[pass];
+                numSingleHeld_[pass] = 0;
+                for (int i = 0; i < numHeld; i++)
+                    afterSingle(pass, singleHeld_[pass][i]);
+            }
+
+            if (numStartSeen_ == 1)
+                putEnd(startHeld_);
+
+            // The end pattern can match before a final line terminator
+            int last = numEndHeld_;
+            if (last > 0 && isLineTerminator(endHeld_[last - 1]))
+                last--;
+            for (int i = 0; i < numEndHeld_; i++) {
+                if (last >= 2 && i == last - 2 && WordFilter.isSpace(endHeld_[i]) && isAsciiLetter(endHeld_[i + 1])) {
+                    putSpaces(' ');
+                    i++;
+                } else
+                    putSpaces(endHeld_[i]);
+            }
+
+            output_.setLength(trimmedLength_);
+            return output_.toString();
+        }
+
+        /**
+         * Pass of \s\w\s, holding a space or a space and a letter
+         */
+        private void putSingle(int pass, char c) {
+            char[] held = singleHeld_[pass];
+            int numHeld = numSingleHeld_[pass];
+            if (numHeld == 0) {
+                if (WordFilter.isSpace(c)) {
+                    held[0] = c;
+                    numSingleHeld_[pass] = 1;
+                } else
+                    afterSingle(pass, c);
+            } else if (numHeld == 1) {
+                if (isAsciiLetter(c)) {
+                    held[1] = c;
+                    numSingleHeld_[pass] = 2;
+                } else if (WordFilter.isSpace(c)) {
+                    afterSingle(pass, held[0]);
+                    held[0] = c;
+                } else {
+                    numSingleHeld_[pass] = 0;
+                    afterSingle(pass, held[0]);
+                    afterSingle(pass, c);
+                }
+            } else {
+                numSingleHeld_[pass] = 0;
+                if (WordFilter.isSpace(c))
+                    afterSingle(pass, ' ');
+                else {
+                    afterSingle(pass, held[0]);
+                    afterSingle(pass, held[1]);
+                    afterSingle(pass, c);
+                }
+            }
+        }
+
+        private void afterSingle(int pass, char c) {
+            if (pass + 1 < NUM_SINGLE_CHARACTER_PASSES)
+                putSingle(pass + 1, c);
+            else
+                putStart(c);
+        }
+
+        /**
+         * Pattern ^\w\s, holding the first character
+         */
+        private void putStart(char c) {
+            if (numStartSeen_ == 0) {
+                startHeld_ = c;
+                numStartSeen_ = 1;
+            } else if (numStartSeen_ == 1) {
+                numStartSeen_ = 2;
+                if (isAsciiLetter(startHeld_) && WordFilter.isSpace(c))
+                    putEnd(' ');
+                else {
+                    putEnd(startHeld_);
+                    putEnd(c);
+                }
+            } else
+                putEnd(c);
+        }
+
+        /**
+         * Pattern \s\w$, holding the last three characters until the end
+         */
+        private void putEnd(char c) {
+            if (numEndHeld_ == endHeld_.length) {
+                putSpaces(endHeld_[0]);
+                System.arraycopy(endHeld_, 1, endHeld_, 0, endHeld_.length - 1);
+                numEndHeld_--;
+            }
+            endHeld_[numEndHeld_++] = c;
+        }
+
+        /**
+         * Trims and replaces runs of \s by a space
+         */
+        private void putSpaces(char c) {
+            int length = output_.length();
+            if (length == 0 && c <= ' ')
+                return;
+            if (WordFilter.isSpace(c)) {
+                if (output_.charAt(length - 1) != ' ')
+                    output_.append(' ');
+            } else
+                output_.append(c);
+            if (c > ' ')
+                trimmedLength_ = output_.length();
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package main;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+import cc.mallet.pipe.Pipe;
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+
+/**
+ * Keeps the pipe and the inferencer of a trained model in memory, so new documents can be classified without reading
+ * the model from disk every time
+ */
+public class TopicInferenceService {
+
+    private static final int NUM_ITERATIONS = 30;
+    private static final int THINNING = 1;
+    private static final int BURN_IN = 5;
+    private static final int ROWS_PER_WORKER = 256;
+    private static final Future<String> END_OF_ROWS = CompletableFuture.completedFuture(null);
+
+    private final TextCleaner textCleaner_;
+    private final Pipe pipe_;
+    private final TopicInferencer inferencer_;
+    private AdviceCodeClassifier adviceCodeClassifier_;
+    private int numAdviceCodes_;
+    private PipelineMetrics metrics_;
+
+    /**
+     * Creates a new inference service
+     *
+     * @param textCleaner Cleaner applied to every document, as in training
+     * @param pipe        Pipe used to import the training documents
+     * @param inferencer  Inferencer of the trained model
+     */
+    public TopicInferenceService(TextCleaner textCleaner, Pipe pipe, TopicInferencer inferencer) {
+        textCleaner_ = textCleaner;
+        pipe_ = pipe;
+        inferencer_ = inferencer;
+        numAdviceCodes_ = 0;
+        // Words not seen in training are ignored by the inferencer, don't keep them in memory
+        pipe_.getDataAlphabet().stopGrowth();
+    }
+
+    /**
+     * Returns the number of topics of the model, as the length of the distribution of an empty document. Sampling
+     * an empty document does not change the state of the inferencer
+     *
+     * @return
+     */
+    public synchronized int getNumTopics() {
+        Instance instance = new Instance(new FeatureSequence(pipe_.getDataAlphabet(), 0), null, "Empty Instance", null);
+        return inferencer_.getSampledDistribution(instance, 1, 1, 0).length;
+    }
+
+    public AdviceCodeClassifier getAdviceCodeClassifier() {
+        return adviceCodeClassifier_;
+    }
+
+    /**
+     * Sets the classifier predicting the advice codes of a document from its topics
+     *
+     * @param adviceCodeClassifier Classifier trained with the model
+     */
+    public void setAdviceCodeClassifier(AdviceCodeClassifier adviceCodeClassifier) {
+        adviceCodeClassifier_ = adviceCodeClassifier;
+    }
+
+    /**
+     * Sets the metrics the latency of every inference is recorded in
+     *
+     * @param metrics Metrics of the run
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        metrics_ = metrics;
+    }
+
+    /**
+     * Sets the number of advice codes per level written after the topics of every document by {@link #serve},
+     * {@link #inferFile} and {@link #inferCorpus}. Needs an advice code classifier
+     *
+     * @param numAdviceCodes Number of advice codes per level, 0 to write only the topics
+     */
+    public void setNumAdviceCodes(int numAdviceCodes) {
+        numAdviceCodes_ = Math.max(0, numAdviceCodes);
+    }
+
+    /**
+     * Returns the probability of every topic for a document
+     *
+     * @param document Text of the document, as read from the input
+     * @return
+     */
+    public double[] getTopicProbabilities(String document) {
+        long start = System.nanoTime();
+        // Lowercased as the training documents
+        String cleanDocument = textCleaner_.clean(TextCleaner.toLowerCase(document));
+        // The pipe and the inferencer keep state between calls
+        synchronized (this) {
+            // Create a new instance with the clean document, empty target and source fields.
+            Instance instance = pipe_.instanceFrom(new Instance(cleanDocument, null, "Test Instance", null));
+            double[] probabilities = inferencer_.getSampledDistribution(instance, NUM_ITERATIONS, THINNING, BURN_IN);
+            recordLatency(start);
+            return probabilities;
+        }
+    }
+
+    /**
+     * Returns the probability of every topic for a document already cleaned and imported to a feature sequence of the
+     * alphabet of the service
+     *
+     * @param features Words of the document
+     * @return
+     */
+    public synchronized double[] getTopicProbabilities(FeatureSequence features) {
+        long start = System.nanoTime();
+        double[] probabilities = inferencer_.getSampledDistribution(new Instance(features, null, "Test Instance", null),
+                NUM_ITERATIONS, THINNING, BURN_IN);
+        recordLatency(start);
+        return probabilities;
+    }
+
+    private void recordLatency(long start) {
+        if (metrics_ != null)
+            metrics_.recordInferenceLatency(System.nanoTime() - start);
+    }
+
+    /**
+     * Returns a copy of the service with its own pipe and inferencer, so it can be used by another thread without
+     * waiting for this one. The alphabet is shared, as it does not grow
+     *
+     * @return
+     * @throws IOException
+     */
+    public TopicInferenceService copy() throws IOException {
+        // Mallet resolves deserialized pipes to the original instance, so only the inferencer is copied this way
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        synchronized (this) {
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(inferencer_);
+            oos.close();
+        }
+        try {
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            TopicInferenceService service = new TopicInferenceService(textCleaner_,
+                    TopicModelling.newImportPipe(pipe_.getDataAlphabet()), (TopicInferencer) ois.readObject());
+            // The classifier does not change when scoring, it is shared
+            service.setAdviceCodeClassifier(adviceCodeClassifier_);
+            service.setNumAdviceCodes(numAdviceCodes_);
+            service.setMetrics(metrics_);
+            return service;
+        } catch (ClassNotFoundException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Writes the pipe and the inferencer of a trained model to a file
+     *
+     * @param file       File to write to
+     * @param pipe       Pipe used to import the training documents
+     * @param inferencer Inferencer of the trained model
+     * @throws IOException
+     */
+    public static void write(File file, Pipe pipe, TopicInferencer inferencer) throws IOException {
+        ObjectOutputStream oos = null;
+        try {
+            oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            // Written in the same stream, so the pipe and the inferencer keep sharing the alphabet
+            oos.writeObject(pipe);
+            oos.writeObject(inferencer);
+        } finally {
+            if (oos != null)
+                oos.close();
+        }
+    }
+
+    /**
+     * Reads the pipe and the inferencer written by {@link #write} and creates a service with them
+     *
+     * @param file        File to read from
+     * @param textCleaner Cleaner applied to every document, as in training
+     * @return
+     * @throws Exception
+     */
+    public static TopicInferenceService read(File file, TextCleaner textCleaner) throws Exception {
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            Pipe pipe = (Pipe) ois.readObject();
+            TopicInferencer inferencer = (TopicInferencer) ois.readObject();
+            return new TopicInferenceService(textCleaner, pipe, inferencer);
+        } finally {
+            if (ois != null)
+                ois.close();
+        }
+    }
+
+    /**
+     * Formats topic probabilities as {topic=probability, ...}, sorted by probability in descending order
+     *
+     * @param probabilities Probability of every topic
+     * @return
+     */
+    public static String formatTopicProbabilities(double[] probabilities) {
+        StringBuilder sb = new StringBuilder("{");
+        for (int topic : Utils.sortIndicesDesc(probabilities)) {
+            if (sb.length() > 1)
+                sb.append(", ");
+            sb.append(topic).append('=').append(probabilities[topic]);
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Serves requests with a line delimited protocol: every line read is a document, and the topic probabilities of
+     * the document are written as one line, followed by a tab and the predicted advice codes if they are enabled.
+     * An empty line is an empty document, answered with the prior distribution of the topics. Stops at the end of the
+     * input
+     *
+     * @param input  Input to read documents from
+     * @param output Output to write topic probabilities to
+     * @throws IOException
+     */
+    public void serve(Reader input, Writer output) throws IOException {
+        BufferedReader brInput = new BufferedReader(input);
+        BufferedWriter bwOutput = new BufferedWriter(output);
+        String inputLine = brInput.readLine();
+        while (inputLine != null) {
+            double[] probabilities = getTopicProbabilities(inputLine);
+            if (isPredictingAdviceCodes())
+                Utils.writeLine(bwOutput, formatTopicProbabilities(probabilities) + "\t"
+                        + adviceCodeClassifier_.formatTopAdviceCodes(probabilities, numAdviceCodes_));
+            else
+                Utils.writeLine(bwOutput, formatTopicProbabilities(probabilities));
+            // Answer every request straight away
+            bwOutput.flush();
+            inputLine = brInput.readLine();
+        }
+    }
+
+    /**
+     * Infers the topics of every document of a file with rows "id,text", and writes a row per document with the id
+     * followed by the top topics and their probabilities: "id,topic,probability,topic,probability,...", and the
+     * predicted advice codes if they are enabled: ",level:code,probability,...". Fields may be quoted, and a quoted
+     * text may span several lines. Documents are scored in parallel, each thread with its own copy of the service,
+     * and written in input order
+     *
+     * @param inputPath    Path of the file with the documents
+     * @param outputPath   Path of the file to write the topics to
+     * @param numThreads   Number of threads scoring documents
+     * @param numTopTopics Number of topics to write per document
+     * @throws Exception
+     */
+    public void inferFile(String inputPath, String outputPath, int numThreads, int numTopTopics) throws Exception {
+        if (!Utils.validateFile(inputPath)) {
+            System.err.println("File not found: " + inputPath);
+            return;
+        }
+
+        inferRows(outputPath, numThreads, (pendingRows, workerExecutor, threadService) -> {
+            CsvReader csvInput = null;
+            try {
+                csvInput = new CsvReader(Utils.getBufferedReader(inputPath), ',', 0, 1);
+                // Do not process empty lines or lines beginning with #
+                csvInput.setSkipComments(true);
+                // The text may contain the separator without quotes, keep it whole
+                csvInput.setJoinTrailingFields(true);
+                while (csvInput.next()) {
+                    String documentID = csvInput.get(0).trim();
+                    String document = csvInput.get(1);
+                    pendingRows.put(workerExecutor.submit(() -> {
+                        TopicInferenceService service = threadService.get();
+                        return service.formatTopTopics(documentID, service.getTopicProbabilities(document), numTopTopics);
+                    }));
+                }
+            } finally {
+                if (csvInput != null)
+                    csvInput.close();
+            }
+        });
+    }
+
+    /**
+     * Infers the topics of every document of a binary corpus, already cleaned and split in words, and writes the same
+     * rows as {@link #inferFile}. Words of the corpus that are not in the alphabet of the model are ignored
+     *
+     * @param corpus       Binary corpus with the documents
+     * @param outputPath   Path of the file to write the topics to
+     * @param numThreads   Number of threads scoring documents
+     * @param numTopTopics Number of topics to write per document
+     * @throws Exception
+     */
+    public void inferCorpus(BinaryCorpus corpus, String outputPath, int numThreads, int numTopTopics) throws Exception {
+        // Word ids of the corpus to word ids of the model
+        Alphabet alphabet = pipe_.getDataAlphabet();
+        String[] words = corpus.getWords();
+        int[] typeMap = new int[words.length];
+        for (int type = 0; type < words.length; type++)
+            typeMap[type] = alphabet.lookupIndex(words[type], false);
+
+        inferRows(outputPath, numThreads, (pendingRows, workerExecutor, threadService) -> {
+            for (int doc = 0; doc < corpus.getNumDocuments(); doc++) {
+                int corpusDoc = doc;
+                pendingRows.put(workerExecutor.submit(() -> {
+                    int[] tokens = corpus.getTokens(corpusDoc);
+                    int numTokens = 0;
+                    for (int token : tokens) {
+                        if (typeMap[token] >= 0)
+                            tokens[numTokens++] = typeMap[token];
+                    }
+                    FeatureSequence features = new FeatureSequence(alphabet, Arrays.copyOf(tokens, numTokens));
+                    TopicInferenceService service = threadService.get();
+                    return service.formatTopTopics(corpus.getDocumentId(corpusDoc),
+                            service.getTopicProbabilities(features), numTopTopics);
+                }));
+            }
+        });
+    }
+
+    /**
+     * Scores the rows submitted by a producer in parallel, each thread with its own copy of the service, and writes
+     * them in the order they were submitted
+     *
+     * @param outputPath Path of the file to write the rows to
+     * @param numThreads Number of threads scoring documents
+     * @param producer   Submits the rows to score
+     * @throws Exception
+     */
+    private void inferRows(String outputPath, int numThreads, RowProducer producer) throws Exception {
+        BufferedWriter bwOutput = null;
+        ExecutorService readerExecutor = null;
+        ExecutorService workerExecutor = null;
+        try {
+            bwOutput = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath), "UTF-8"));
+
+            // One copy of the service per thread, as the inferencer keeps sampling state
+            BlockingQueue<TopicInferenceService> services = new LinkedBlockingQueue<TopicInferenceService>();
+            services.add(this);
+            for (int i = 1; i < numThreads; i++)
+                services.add(copy());
+            ThreadLocal<TopicInferenceService> threadService = ThreadLocal.withInitial(services::remove);
+
+            // Rows being scored, in input order. The producer blocks when the queue is full
+            BlockingQueue<Future<String>> pendingRows = new ArrayBlockingQueue<Future<String>>(numThreads * ROWS_PER_WORKER);
+            workerExecutor = Executors.newFixedThreadPool(numThreads);
+            readerExecutor = Executors.newSingleThreadExecutor();
+            ExecutorService rowExecutor = workerExecutor;
+            Future<?> reader = readerExecutor.submit(() -> {
+                try {
+                    producer.submitRows(pendingRows, rowExecutor, threadService);
+                    // Let the writer finish
+                    pendingRows.put(END_OF_ROWS);
+                } catch (InterruptedException ex) {
+                    // Stopped by the writer, which takes no more rows
+                } catch (Exception ex) {
+                    // Let the writer stop with the error. The wait for room ends when the writer stops and
+                    // interrupts the producer
+                    pendingRows.put(Utils.<String>failedFuture(ex));
+                    throw ex;
+                }
+                return null;
+            });
+
+            // Write the rows in input order
+            Future<String> pendingRow = pendingRows.take();
+            while (pendingRow != END_OF_ROWS) {
+                Utils.writeLine(bwOutput, pendingRow.get());
+                pendingRow = pendingRows.take();
+            }
+            // Propagate any error of the reader
+            reader.get();
+        } catch (Exception ex) {
+            throw ex;
+        } finally {
+            try {
+                // Stop the reader and workers, in case of error
+                if (readerExecutor != null)
+                    readerExecutor.shutdownNow();
+                if (workerExecutor != null)
+                    workerExecutor.shutdownNow();
+                Utils.closeBufferedWriter(bwOutput);
+            } catch (Exception ex) {
+                // Don't do anything
+            }
+        }
+    }
+
+    /**
+     * Submits rows to score to the workers, adding them to the queue in output order
+     */
+    private interface RowProducer {
+        void submitRows(BlockingQueue<Future<String>> pendingRows, ExecutorService workerExecutor,
+                        ThreadLocal<TopicInferenceService> threadService) throws Exception;
+    }
+
+    private boolean isPredictingAdviceCodes() {
+        return adviceCodeClassifier_ != null && numAdviceCodes_ > 0;
+    }
+
+    /**
+     * Formats the top topics of a document as "id,topic,probability,topic,probability,...", followed by the predicted
+     * advice codes as ",level:code,probability,..." if they are enabled
+     *
+     * @param documentID    Id of the document
+     * @param probabilities Probability of every topic
+     * @param numTopTopics  Number of topics to write
+     * @return
+     */
+    private String formatTopTopics(String documentID, double[] probabilities, int numTopTopics) {
+        StringBuilder sb = new StringBuilder(documentID);
+        for (int topic : Utils.topIndicesDesc(probabilities, numTopTopics)) {
+            sb.append(',').append(topic).append(',').append(probabilities[topic]);
+        }
+        if (isPredictingAdviceCodes())
+            sb.append(',').append(adviceCodeClassifier_.formatTopAdviceCodes(probabilities, numAdviceCodes_));
+        return sb.toString();
+    }
+}
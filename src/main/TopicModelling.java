@@ -1,26 +1,48 @@
 package main;
 
 import java.io.*;
-import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Handler;
 import java.util.regex.Pattern;
 
 import cc.mallet.types.*;
 import cc.mallet.pipe.*;
 import cc.mallet.pipe.iterator.*;
 import cc.mallet.topics.*;
+import cc.mallet.util.Randoms;
 
 public class TopicModelling {
 
-    private HashSet<String> idList_;
-    private HashMap<String, Integer> wordCountMap_;
-    private HashMap<String, String> idAdviceCodeLevel1Map_;
-    private HashMap<String, String> idAdviceCodeLevel2Map_;
-    private HashMap<String, String> idAdviceCodeLevel3Map_;
-
-    private String stopWordsStringPattern_;
-    private String otherWordsStringPattern_;
+    private static final int ROWS_PER_WORKER = 256;
+    private static final int READER_STOP_TIMEOUT_SECONDS = 60;
+    // Change when the cleaning or the outputs of preprocessing change, so cached outputs are not reused
+    private static final int PREPROCESSING_VERSION = 3;
+    private static final Future<CleanRow> END_OF_ROWS = CompletableFuture.completedFuture(null);
+
+    // Ids of the documents seen, by a loaded model and by the next preprocessing, which closes the set when it finishes
+    private DocumentIdSet documentIds_;
+    private Vocabulary vocabulary_;
+    private AdviceCodeIndex adviceCodeIndex_;
+
+    private TextCleaner textCleaner_;
+    private int numWorkers_;
+    private TrainingParameters trainingParameters_;
+    private boolean writeTrainingFile_;
+    private boolean importTrainingInstances_;
+    private boolean usePreprocessingCache_;
+    private boolean writePreAnalysis_;
+    // Set for each preprocessing: the pre analysis is written, and words counted, unless it updates a loaded model
+    private boolean countingWords_;
+    private String stopWordsPath_;
+    private String otherWordsPath_;
+    private InstanceList trainingInstances_;
+    private ParallelTopicModel trainedModel_;
+    private PipelineMetrics metrics_;
 
     /**
      * Creates a new text file splitter. Loads files for stop words and other words
@@ -30,11 +52,15 @@ public class TopicModelling {
      * @throws Exception
      */
     public TopicModelling(String stopWordsPath, String otherWordsPath) throws Exception {
-        idList_ = new HashSet<String>();
-        wordCountMap_ = new HashMap<String, Integer>();
-        idAdviceCodeLevel1Map_ = new HashMap<String, String>();
-        idAdviceCodeLevel2Map_ = new HashMap<String, String>();
-        idAdviceCodeLevel3Map_ = new HashMap<String, String>();
+        documentIds_ = new DocumentIdSet();
+        vocabulary_ = new Vocabulary();
+        adviceCodeIndex_ = new AdviceCodeIndex();
+        numWorkers_ = Runtime.getRuntime().availableProcessors();
+        trainingParameters_ = new TrainingParameters();
+        importTrainingInstances_ = true;
+        usePreprocessingCache_ = true;
+        writePreAnalysis_ = true;
+        metrics_ = new PipelineMetrics();
 
         loadFiles(stopWordsPath, otherWordsPath);
     }
@@ -48,42 +74,35 @@ public class TopicModelling {
      * @throws Exception
      */
     public void loadAdviceCodeIds(String path, String splitChar, boolean skipFirstLine) throws Exception {
-        BufferedReader brInput = null;
+        CsvReader csvInput = null;
+        PipelineMetrics.Stage stage = metrics_.startStage("loadAdviceCodeIds");
         try {
             // advice codes
             if (Utils.validateFile(path)) {
-                // Load
-                brInput = Utils.getBufferedReader(path);
-                String inputLine = brInput.readLine();
+                // Load the id and the advice code of every level
+                csvInput = new CsvReader(Utils.getBufferedReader(path), splitChar.charAt(0), 0, 1, 2, 3);
+                // Do not process empty lines or lines beginning with #
+                csvInput.setSkipComments(true);
                 // skip first line
                 if (skipFirstLine)
-                    inputLine = brInput.readLine();
+                    csvInput.next();
                 // Read lines
-                while (inputLine != null) {
-                    // Do not process empty lines or lines beginning with #
-                    if (inputLine.isEmpty() || inputLine.startsWith("#")) {
-                        inputLine = brInput.readLine();
-                        continue;
+                while (csvInput.next()) {
+                    String enquiryNumber = csvInput.get(0).trim();
+
+                    // add Advice code of every level, enquiries without any code are not kept
+                    int enquiry = AdviceCodeIndex.NO_ENQUIRY;
+                    for (int level = 0; level < AdviceCodeIndex.NUM_LEVELS; level++) {
+                        String adviceCode = csvInput.get(level + 1).trim();
+                        if (adviceCode.isEmpty())
+                            continue;
+                        if (enquiry == AdviceCodeIndex.NO_ENQUIRY)
+                            enquiry = adviceCodeIndex_.addEnquiry(enquiryNumber);
+                        adviceCodeIndex_.setCode(enquiry, level, adviceCode);
                     }
-
-                    String[] values = inputLine.split(splitChar, -1);
-                    String enquiryNumber = values[0].trim();
-                    String adviceCodeLevel1 = values[1].trim();
-                    String adviceCodeLevel2 = values[2].trim();
-                    String adviceCodeLevel3 = values[3].trim();
-
-                    // add Advice code level 1
-                    if (!adviceCodeLevel1.isEmpty())
-                        idAdviceCodeLevel1Map_.put(enquiryNumber, adviceCodeLevel1);
-                    // add Advice code level 2
-                    if (!adviceCodeLevel2.isEmpty())
-                        idAdviceCodeLevel2Map_.put(enquiryNumber, adviceCodeLevel2);
-                    // add Advice code level 3
-                    if (!adviceCodeLevel3.isEmpty())
-                        idAdviceCodeLevel3Map_.put(enquiryNumber, adviceCodeLevel3);
-
-                    inputLine = brInput.readLine();
+                    stage.addRows(1);
                 }
+                stage.stop();
             } else
                 System.err.println("File not found: " + path);
 
@@ -92,7 +111,8 @@ public class TopicModelling {
         } finally {
             try {
                 // Close files
-                Utils.closeBufferedReader(brInput);
+                if (csvInput != null)
+                    csvInput.close();
             } catch (Exception ex) {
                 // Don't do anything
             }
@@ -100,78 +120,289 @@ public class TopicModelling {
     }
 
     /**
-     * Loads the stop words and other words files to create the string patterns
+     * Loads the stop words and other words files to create the text cleaner
      *
      * @param stopWordsPath  Path of file containing stop words
      * @param otherWordsPath Path of file containing other words
      * @throws Exception
      */
     private void loadFiles(String stopWordsPath, String otherWordsPath) throws Exception {
-        BufferedReader brStopWordsInput = null;
-        BufferedReader brOtherWordsInput = null;
+        stopWordsPath_ = stopWordsPath;
+        otherWordsPath_ = otherWordsPath;
+        textCleaner_ = new TextCleaner(Utils.loadWordList(stopWordsPath), Utils.loadWordList(otherWordsPath));
+    }
+
+    /**
+     * Sets the number of threads cleaning rows when generating the training file
+     *
+     * @param numWorkers Number of worker threads
+     */
+    public void setNumWorkers(int numWorkers) {
+        numWorkers_ = Math.max(1, numWorkers);
+    }
+
+    /**
+     * Sets if generating the training file writes the documents to the training data file. The documents are always
+     * imported to the training instances directly, so the file is only needed for debugging
+     *
+     * @param writeTrainingFile Indicates if the training data file is written
+     */
+    public void setWriteTrainingFile(boolean writeTrainingFile) {
+        writeTrainingFile_ = writeTrainingFile;
+    }
+
+    /**
+     * Sets if generating the training file imports the documents to the training instances. Engines that stream the
+     * training data file do not need them in memory
+     *
+     * @param importTrainingInstances Indicates if the training instances are imported
+     */
+    public void setImportTrainingInstances(boolean importTrainingInstances) {
+        importTrainingInstances_ = importTrainingInstances;
+    }
+
+    /**
+     * Sets if generating the training file is skipped when its outputs were generated from the same input file, word
+     * files and parameters
+     *
+     * @param usePreprocessingCache Indicates if the outputs of the last preprocessing can be reused
+     */
+    public void setUsePreprocessingCache(boolean usePreprocessingCache) {
+        usePreprocessingCache_ = usePreprocessingCache;
+    }
+
+    /**
+     * Sets if generating the training file writes the pre analysis files: all words, all words with id and the count
+     * of every word. Words are only counted if they are written. Updating a loaded model never writes them, so the
+     * pre analysis of the full corpus is kept
+     *
+     * @param writePreAnalysis Indicates if the pre analysis files are written
+     */
+    public void setWritePreAnalysis(boolean writePreAnalysis) {
+        writePreAnalysis_ = writePreAnalysis;
+    }
+
+    /**
+     * Sets the metrics the stages of the run are recorded in
+     *
+     * @param metrics Metrics of the run
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        metrics_ = metrics;
+    }
+
+    /**
+     * Sets the parameters of the topic model and of the sampler used in training
+     *
+     * @param trainingParameters Training parameters
+     */
+    public void setTrainingParameters(TrainingParameters trainingParameters) {
+        trainingParameters_ = trainingParameters;
+    }
+
+    /**
+     * Generates the training instances for Mallet, one file with all the processed words per line, and one file with all the processed words per line plus the id.
+     * The training data file, with the processed words of a document per line, is only written if enabled.
+     * Nothing is generated if the outputs of the last run were generated from the same input and parameters, training
+     * then reads the binary corpus. The ids of the documents seen, including the ones of a loaded model, are released
+     * when it finishes
+     *
+     * @param folderPath
+     * @param fileName
+     * @param splitChar
+     * @param fieldId
+     * @param primaryFieldNumber
+     * @param firstExtraField
+     * @param lastExtraField
+     * @param includeExtraFields
+     * @param ignoreDuplicates
+     * @param skipFirstLine
+     * @param backupFiles
+     * @throws Exception
+     */
+    public void generateTrainingFile(String folderPath, String fileName, String splitChar, int fieldId, int primaryFieldNumber, int firstExtraField, int lastExtraField, boolean includeExtraFields, boolean ignoreDuplicates,
+                                     boolean skipFirstLine, boolean backupFiles) throws Exception {
+        ArtifactWriter awOutputAllWords = null;
+        ArtifactWriter awOutputAllWordsWithId = null;
+        ArtifactWriter awOutputAllWordsWithCount = null;
+        ArtifactWriter awOutputTraining = null;
+        ExecutorService readerExecutor = null;
+        ExecutorService workerExecutor = null;
+        PipelineMetrics.Stage stage = metrics_.startStage("generateTrainingFile");
         try {
-            ArrayList<String> wordList = new ArrayList<String>();
-            String inputLine;
-
-            // Stop words
-            if (Utils.validateFile(stopWordsPath)) {
-                // Load
-                brStopWordsInput = Utils.getBufferedReader(stopWordsPath);
-                inputLine = brStopWordsInput.readLine();
-                // Read lines
-                while (inputLine != null) {
-                    // Do not process empty lines or lines beginning with #
-                    if (inputLine.isEmpty() || inputLine.startsWith("#")) {
-                        inputLine = brStopWordsInput.readLine();
-                        continue;
-                    }
-                    // Add line to list
-                    wordList.add(inputLine.trim());
-                    inputLine = brStopWordsInput.readLine();
+            String completePath = Paths.get(folderPath, fileName).toString();
+            if (Utils.validateFile(completePath)) {
+                if (backupFiles)
+                    Utils.generateBackup(Paths.get(folderPath, Utils.TRAINING_FOLDER).toString());
+
+                // Reuse the outputs of the last run if nothing they depend on changed. New documents for a loaded model
+                // are always imported
+                String keyPath = Paths.get(folderPath, Utils.PRE_ANALYSIS_FOLDER, Utils.PREPROCESSING_KEY_FILENAME).toString();
+                String key = getPreprocessingKey(completePath, splitChar, fieldId, primaryFieldNumber, firstExtraField,
+                        lastExtraField, includeExtraFields, ignoreDuplicates, skipFirstLine);
+                boolean updatingModel = trainingInstances_ != null;
+                if (usePreprocessingCache_ && !updatingModel && key.equals(readPreprocessingKey(keyPath))
+                        && hasPreprocessingOutputs(folderPath)) {
+                    System.out.println("Preprocessing skipped, outputs are up to date: " + key);
+                    stage.stop();
+                    return;
                 }
-                stopWordsStringPattern_ = String.join("|", wordList);
-            } else
-                System.err.println("File not found: " + stopWordsPath);
-
-            // Other words
-            if (Utils.validateFile(otherWordsPath)) {
-                wordList = new ArrayList<String>();
-                // Load
-                brOtherWordsInput = Utils.getBufferedReader(otherWordsPath);
-                inputLine = brOtherWordsInput.readLine();
-                // Read lines
-                while (inputLine != null) {
-                    // Do not process empty lines or lines beginning with #
-                    if (inputLine.isEmpty() || inputLine.startsWith("#")) {
-                        inputLine = brOtherWordsInput.readLine();
-                        continue;
+                // The outputs are not valid until this run finishes
+                new File(keyPath).delete();
+
+                // The pre analysis files describe the full corpus, an update only reads the new documents
+                countingWords_ = writePreAnalysis_ && !updatingModel;
+                if (countingWords_) {
+                    String preAnalysisFolder = Paths.get(folderPath, Utils.PRE_ANALYSIS_FOLDER).toString();
+                    // File for all words
+                    awOutputAllWords = new ArtifactWriter(preAnalysisFolder, Utils.INFO_ALL_WORDS_FILENAME);
+                    // File for all words with id per document. id, words in primary field, words in extra fields
+                    awOutputAllWordsWithId = new ArtifactWriter(preAnalysisFolder, Utils.INFO_ALL_WORDS_ID_FILENAME);
+                    awOutputAllWordsWithId.writeLine("id,primary_field_words,extra_fields_words");
+                    // File for all words with count
+                    awOutputAllWordsWithCount = new ArtifactWriter(preAnalysisFolder, Utils.INFO_ALL_WORDS_COUNT_FILENAME);
+                    awOutputAllWordsWithCount.writeLine("word,count");
+                }
+                // File for all documents per line for training
+                if (writeTrainingFile_)
+                    awOutputTraining = new ArtifactWriter(Paths.get(folderPath, Utils.TRAINING_FOLDER).toString(), Utils.DATA_TRAINING_FILENAME);
+                // Documents imported to feature sequences, as the import pipe would do. If a trained model was
+                // loaded, the new documents are added to its instances and its alphabet grows with the new words
+                InstanceList instances = trainingInstances_ != null ? trainingInstances_ : new InstanceList(newImportPipe(new Alphabet()));
+                Alphabet dataAlphabet = instances.getDataAlphabet();
+
+                // Rows being cleaned, in input order. The reader blocks when the queue is full
+                BlockingQueue<Future<CleanRow>> pendingRows = new ArrayBlockingQueue<Future<CleanRow>>(numWorkers_ * ROWS_PER_WORKER);
+                workerExecutor = Executors.newFixedThreadPool(numWorkers_);
+                readerExecutor = Executors.newSingleThreadExecutor();
+                Future<?> reader = readerExecutor.submit(
+                        newRowReader(completePath, splitChar, fieldId, primaryFieldNumber, firstExtraField, lastExtraField,
+                                includeExtraFields, ignoreDuplicates, skipFirstLine, pendingRows, workerExecutor));
+
+                // Write the cleaned rows in input order
+                Future<CleanRow> pendingRow = pendingRows.take();
+                while (pendingRow != END_OF_ROWS) {
+                    CleanRow row = pendingRow.get();
+                    String documentID = row.documentID;
+                    String primaryFieldValue = row.primaryFieldValue;
+                    String otherFieldValue = row.otherFieldValue;
+                    stage.addRows(1);
+                    stage.addTokens(row.tokens.length);
+
+                    // Add the document to the training instances
+                    if (importTrainingInstances_) {
+                        FeatureSequence featureSequence = new FeatureSequence(dataAlphabet, row.tokens.length);
+                        for (String token : row.tokens)
+                            featureSequence.add(token);
+                        instances.add(new Instance(featureSequence, Utils.DEFAULT_DOCUMENT_LABEL, documentID, null));
+                    }
+
+                    if (awOutputTraining != null) {
+                        awOutputTraining.append(documentID).append(',').append(Utils.DEFAULT_DOCUMENT_LABEL).append(',')
+                                .append(primaryFieldValue);
+                        // Add primary field value with extra fields
+                        if (includeExtraFields)
+                            awOutputTraining.append(' ').append(otherFieldValue);
+                        awOutputTraining.endLine();
+                    }
+
+                    if (countingWords_) {
+                        // Add info of primaryFieldValue and otherFieldValue to file
+                        awOutputAllWords.append(primaryFieldValue).append(' ').append(otherFieldValue).endLine();
+                        // Add info of id, primaryFieldValue and otherFieldValue to file
+                        awOutputAllWordsWithId.append(documentID).append(',').append(primaryFieldValue).append(',')
+                                .append(otherFieldValue).endLine();
                     }
-                    // Add line to list
-                    wordList.add(inputLine.trim());
-                    inputLine = brOtherWordsInput.readLine();
+
+                    pendingRow = pendingRows.take();
                 }
+                // Propagate any error of the reader
+                reader.get();
 
-                otherWordsStringPattern_ = String.join("|", wordList);
+                // Add words with count to file
+                if (countingWords_)
+                    vocabulary_.write(awOutputAllWordsWithCount);
+
+                // Close the files before the key marks them as valid, so an error writing them fails the run
+                ArtifactWriter[] artifactWriters = {awOutputAllWords, awOutputAllWordsWithId, awOutputAllWordsWithCount,
+                        awOutputTraining};
+                awOutputAllWords = null;
+                awOutputAllWordsWithId = null;
+                awOutputAllWordsWithCount = null;
+                awOutputTraining = null;
+                closeArtifactWriters(artifactWriters);
+
+                if (importTrainingInstances_) {
+                    trainingInstances_ = instances;
+                    // Binary corpus, so later runs can train without preprocessing
+                    Utils.createDirectory(Paths.get(folderPath, Utils.TRAINING_FOLDER).toString());
+                    BinaryCorpus.write(new File(Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_CORPUS_BINARY).toString()), instances);
+                }
+
+                // The outputs of an update also have the documents of the loaded model, they can't be reused
+                if (!updatingModel) {
+                    BufferedWriter bwOutputKey = Utils.getBufferedWriter(Paths.get(folderPath, Utils.PRE_ANALYSIS_FOLDER).toString(), Utils.PREPROCESSING_KEY_FILENAME, false);
+                    Utils.writeLine(bwOutputKey, key);
+                    Utils.closeBufferedWriter(bwOutputKey);
+                }
+                stage.stop();
             } else
-                System.err.println("File not found: " + otherWordsPath);
+                System.err.println("File not found: " + completePath);
         } catch (Exception ex) {
+            // Files still open are incomplete, errors closing them are added to the one that stopped the run
+            try {
+                closeArtifactWriters(awOutputAllWords, awOutputAllWordsWithId, awOutputAllWordsWithCount, awOutputTraining);
+            } catch (IOException closeEx) {
+                ex.addSuppressed(closeEx);
+            }
             throw ex;
         } finally {
+            // Stop the reader and workers, in case of error
+            if (readerExecutor != null)
+                readerExecutor.shutdownNow();
+            if (workerExecutor != null)
+                workerExecutor.shutdownNow();
+            // The document ids are not needed once the input is read. The reader adds to them until it stops, then
+            // the spilled ids are deleted and the next preprocessing starts with an empty set
             try {
-                // Close files
-                Utils.closeBufferedReader(brStopWordsInput);
-                Utils.closeBufferedReader(brOtherWordsInput);
-            } catch (Exception ex) {
-                // Don't do anything
+                if (readerExecutor != null)
+                    readerExecutor.awaitTermination(READER_STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                documentIds_.close();
+            } finally {
+                documentIds_ = new DocumentIdSet();
             }
         }
     }
 
     /**
-     * Generates the training file for Mallet, one file with all the processed words per line, and one file with all the processed words per line plus the id
+     * Closes every writer, even if closing one of them fails, and throws the first error with the others suppressed
      *
-     * @param folderPath
-     * @param fileName
+     * @param writers Writers to close, null ones are skipped
+     * @throws IOException
+     */
+    private static void closeArtifactWriters(ArtifactWriter... writers) throws IOException {
+        IOException error = null;
+        for (ArtifactWriter writer : writers) {
+            if (writer == null)
+                continue;
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                if (error == null)
+                    error = ex;
+                else
+                    error.addSuppressed(ex);
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Returns the key of the outputs of preprocessing: a hash of the size, modification time and contents of the input
+     * file, the contents of the word files, the field layout and the outputs to generate
+     *
+     * @param path
      * @param splitChar
      * @param fieldId
      * @param primaryFieldNumber
@@ -180,172 +411,781 @@ public class TopicModelling {
      * @param includeExtraFields
      * @param ignoreDuplicates
      * @param skipFirstLine
-     * @param backupFiles
+     * @return
      * @throws Exception
      */
-    public void generateTrainingFile(String folderPath, String fileName, String splitChar, int fieldId, int primaryFieldNumber, int firstExtraField, int lastExtraField, boolean includeExtraFields, boolean ignoreDuplicates,
-                                     boolean skipFirstLine, boolean backupFiles) throws Exception {
+    private String getPreprocessingKey(String path, String splitChar, int fieldId, int primaryFieldNumber,
+                                       int firstExtraField, int lastExtraField, boolean includeExtraFields,
+                                       boolean ignoreDuplicates, boolean skipFirstLine) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        File file = new File(path);
+        String parameters = String.format("%d|%d|%d|%s|%d|%d|%d|%d|%b|%b|%b|%b|%b|%b", PREPROCESSING_VERSION, file.length(),
+                file.lastModified(), splitChar, fieldId, primaryFieldNumber, firstExtraField, lastExtraField,
+                includeExtraFields, ignoreDuplicates, skipFirstLine, writeTrainingFile_, importTrainingInstances_,
+                writePreAnalysis_);
+        digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+        Utils.updateDigest(digest, path);
+        // Separate the files, so moving a word from one to the other changes the key
+        digest.update((byte) 0);
+        Utils.updateDigest(digest, stopWordsPath_);
+        digest.update((byte) 0);
+        Utils.updateDigest(digest, otherWordsPath_);
+        return Utils.toHex(digest.digest());
+    }
+
+    /**
+     * Returns the key written by the last preprocessing, or an empty string if there is none
+     *
+     * @param keyPath Path of the key file
+     * @return
+     * @throws IOException
+     */
+    private static String readPreprocessingKey(String keyPath) throws IOException {
+        if (!Utils.validateFile(keyPath))
+            return "";
+
         BufferedReader brInput = null;
-        BufferedWriter bwOutputAllWords = null;
-        BufferedWriter bwOutputAllWordsWithId = null;
-        BufferedWriter bwOutputAllWordsWithCount = null;
-        BufferedWriter bwOutputTraining = null;
         try {
-            String completePath = Paths.get(folderPath, fileName).toString();
-            if (Utils.validateFile(completePath)) {
-                if (backupFiles)
-                    Utils.generateBackup(Paths.get(folderPath, Utils.TRAINING_FOLDER).toString());
+            brInput = Utils.getBufferedReader(keyPath);
+            String inputLine = brInput.readLine();
+            return inputLine == null ? "" : inputLine.trim();
+        } finally {
+            Utils.closeBufferedReader(brInput);
+        }
+    }
 
-                // File for all words
-                bwOutputAllWords = Utils.getBufferedWriter(Paths.get(folderPath, Utils.PRE_ANALYSIS_FOLDER).toString(), Utils.INFO_ALL_WORDS_FILENAME, false);
-                // File for all words with id per document. id, words in primary field, words in extra fields
-                bwOutputAllWordsWithId = Utils.getBufferedWriter(Paths.get(folderPath, Utils.PRE_ANALYSIS_FOLDER).toString(), Utils.INFO_ALL_WORDS_ID_FILENAME, false);
-                Utils.writeLine(bwOutputAllWordsWithId, "id,primary_field_words,extra_fields_words");
-                // File for all words with count
-                bwOutputAllWordsWithCount = Utils.getBufferedWriter(Paths.get(folderPath, Utils.PRE_ANALYSIS_FOLDER).toString(), Utils.INFO_ALL_WORDS_COUNT_FILENAME, false);
-                Utils.writeLine(bwOutputAllWordsWithCount, "word,count");
-                // File for all documents per line for training
-                bwOutputTraining = Utils.getBufferedWriter(Paths.get(folderPath, Utils.TRAINING_FOLDER).toString(), Utils.DATA_TRAINING_FILENAME, false);
+    /**
+     * Indicates if all the files preprocessing generates with the current settings exist
+     *
+     * @param folderPath
+     * @return
+     */
+    private boolean hasPreprocessingOutputs(String folderPath) {
+        String preAnalysisFolder = Paths.get(folderPath, Utils.PRE_ANALYSIS_FOLDER).toString();
+        String trainingFolder = Paths.get(folderPath, Utils.TRAINING_FOLDER).toString();
+        return (!writePreAnalysis_ || (Utils.validateFile(Paths.get(preAnalysisFolder, Utils.INFO_ALL_WORDS_FILENAME).toString())
+                && Utils.validateFile(Paths.get(preAnalysisFolder, Utils.INFO_ALL_WORDS_ID_FILENAME).toString())
+                && Utils.validateFile(Paths.get(preAnalysisFolder, Utils.INFO_ALL_WORDS_COUNT_FILENAME).toString())))
+                && (!writeTrainingFile_ || Utils.validateFile(Paths.get(trainingFolder, Utils.DATA_TRAINING_FILENAME).toString()))
+                && (!importTrainingInstances_ || Utils.validateFile(Paths.get(trainingFolder, Utils.DATA_CORPUS_BINARY).toString()));
+    }
 
+    /**
+     * Creates the task that reads the input file, skips duplicates and empty rows, and submits every other row to be
+     * cleaned. The pending rows are added to the queue in input order, followed by END_OF_ROWS, or by a failed row if
+     * reading fails. Nothing else is added once the writer interrupts the reader. Fields may be quoted as in
+     * RFC 4180, only the first character of the split char is used as separator
+     *
+     * @param path
+     * @param splitChar
+     * @param fieldId
+     * @param primaryFieldNumber
+     * @param firstExtraField
+     * @param lastExtraField
+     * @param includeExtraFields
+     * @param ignoreDuplicates
+     * @param skipFirstLine
+     * @param pendingRows    Queue of rows being cleaned
+     * @param workerExecutor Executor cleaning the rows
+     * @return
+     */
+    private Callable<Void> newRowReader(String path, String splitChar, int fieldId, int primaryFieldNumber,
+                                        int firstExtraField, int lastExtraField, boolean includeExtraFields,
+                                        boolean ignoreDuplicates, boolean skipFirstLine,
+                                        BlockingQueue<Future<CleanRow>> pendingRows, ExecutorService workerExecutor) {
+        // Only the id, the primary field and the extra fields are read
+        int[] columns = new int[2 + Math.max(0, lastExtraField - firstExtraField)];
+        columns[0] = fieldId;
+        columns[1] = primaryFieldNumber;
+        for (int i = firstExtraField; i < lastExtraField; i++)
+            columns[2 + i - firstExtraField] = i;
+
+        return () -> {
+            CsvReader csvInput = null;
+            try {
                 // File to read
-                brInput = Utils.getBufferedReader(completePath);
+                csvInput = new CsvReader(Utils.getBufferedReader(path), splitChar.charAt(0), columns);
+                // Do not process empty lines or lines beginning with #
+                csvInput.setSkipComments(true);
 
-                String inputLine = brInput.readLine();
                 // skip first line
                 if (skipFirstLine)
-                    inputLine = brInput.readLine();
+                    csvInput.next();
                 // Read lines
-                while (inputLine != null) {
-                    // Do not process empty lines or lines beginning with #
-                    if (inputLine.isEmpty() || inputLine.startsWith("#")) {
-                        inputLine = brInput.readLine();
-                        continue;
-                    }
-
+                while (csvInput.next()) {
+                    // The values are cleaned by another thread, they can't be the buffers of the reader
+                    String[] values = csvInput.getValues();
                     // To lowercase
-                    inputLine = inputLine.toLowerCase();
-
-                    String[] values = inputLine.split(splitChar, -1);
+                    for (int column : columns)
+                        values[column] = TextCleaner.toLowerCase(values[column]);
                     String documentID = values[fieldId].trim();
 
                     // Ignore duplicates, continue with next line
                     if (ignoreDuplicates) {
-                        if (Utils.isValueDuplicated(idList_, documentID)) {
-                            inputLine = brInput.readLine();
+                        if (!documentIds_.add(documentID))
                             continue;
-                        }
                     }
 
-                    // - Process primary Field value
-                    String primaryFieldValue = values[primaryFieldNumber].trim();
-                    // Ignore empty value
-                    if (primaryFieldValue.isEmpty()) {
-                        inputLine = brInput.readLine();
+                    // Ignore empty primary field value
+                    if (values[primaryFieldNumber].trim().isEmpty())
                         continue;
-                    }
 
-                    // Clean string
-                    primaryFieldValue = Utils.cleanString(primaryFieldValue, stopWordsStringPattern_, otherWordsStringPattern_, wordCountMap_);
+                    pendingRows.put(workerExecutor.submit(
+                            () -> cleanRow(values, documentID, primaryFieldNumber, firstExtraField, lastExtraField, includeExtraFields)));
+                }
+                // Let the writer finish
+                pendingRows.put(END_OF_ROWS);
+            } catch (InterruptedException ex) {
+                // Stopped by the writer, which takes no more rows
+            } catch (Exception ex) {
+                // Let the writer stop with the error. The wait for room ends when the writer stops and interrupts
+                // the reader
+                pendingRows.put(Utils.<CleanRow>failedFuture(ex));
+                throw ex;
+            } finally {
+                if (csvInput != null)
+                    csvInput.close();
+            }
+            return null;
+        };
+    }
 
-                    // - Process other Field value
-                    // Don't process Fields with duplicate values
-                    HashSet<String> otherFieldValues = new HashSet<String>();
-                    for (int i = firstExtraField; i < lastExtraField; i++) {
-                        otherFieldValues.add(values[i].trim());
-                    }
+    /**
+     * Cleans the primary field and the extra fields of a row, counts their words and splits the training document in
+     * tokens
+     *
+     * @param values
+     * @param documentID
+     * @param primaryFieldNumber
+     * @param firstExtraField
+     * @param lastExtraField
+     * @param includeExtraFields
+     * @return
+     */
+    private CleanRow cleanRow(String[] values, String documentID, int primaryFieldNumber, int firstExtraField, int lastExtraField,
+                              boolean includeExtraFields) {
+        // - Process primary Field value
+        String primaryFieldValue = textCleaner_.clean(values[primaryFieldNumber].trim());
+        // Word counts are only written to the pre analysis files
+        if (countingWords_)
+            vocabulary_.addWords(primaryFieldValue);
+
+        // - Process other Field value
+        // Don't process Fields with duplicate values
+        HashSet<String> uniqueOtherFieldValues = new HashSet<String>();
+        for (int i = firstExtraField; i < lastExtraField; i++) {
+            uniqueOtherFieldValues.add(values[i].trim());
+        }
 
-                    // Concat all other values
-                    String otherFieldValue = "";
-                    for (String val : otherFieldValues) {
-                        otherFieldValue += val + " ";
-                    }
+        // Concat all other values
+        StringBuilder otherFieldValues = new StringBuilder();
+        for (String val : uniqueOtherFieldValues) {
+            otherFieldValues.append(val).append(' ');
+        }
 
-                    // Clean string
-                    otherFieldValue = Utils.cleanString(otherFieldValue, stopWordsStringPattern_, otherWordsStringPattern_, wordCountMap_);
+        // Clean string
+        String otherFieldValue = textCleaner_.clean(otherFieldValues.toString());
+        if (countingWords_)
+            vocabulary_.addWords(otherFieldValue);
+
+        CleanRow row = new CleanRow();
+        row.documentID = documentID;
+        row.primaryFieldValue = primaryFieldValue;
+        row.otherFieldValue = otherFieldValue;
+        row.tokens = TextCleaner.tokenize(includeExtraFields ? primaryFieldValue + " " + otherFieldValue : primaryFieldValue);
+        return row;
+    }
 
-                    // Add primary field value without extra fields
-                    if (!includeExtraFields)
-                        Utils.writeLine(bwOutputTraining, String.format("%s,%s,%s", documentID, Utils.DEFAULT_DOCUMENT_LABEL, primaryFieldValue));
-                        // Add primary field value with extra fields
-                    else
-                        Utils.writeLine(bwOutputTraining, String.format("%s,%s,%s %s", documentID, Utils.DEFAULT_DOCUMENT_LABEL, primaryFieldValue, otherFieldValue));
+    /**
+     * Row of the input file after cleaning
+     */
+    private static class CleanRow {
+        String documentID;
+        String primaryFieldValue;
+        String otherFieldValue;
+        String[] tokens;
+    }
 
-                    // Add info of primaryFieldValue and otherFieldValue to file
-                    Utils.writeLine(bwOutputAllWords, String.format("%s %s", primaryFieldValue, otherFieldValue));
-                    // Add info of id, primaryFieldValue and otherFieldValue to file
-                    Utils.writeLine(bwOutputAllWordsWithId, String.format("%s,%s,%s", documentID, primaryFieldValue, otherFieldValue));
+    /**
+     * Trains a model for topic modelling using mallet. With worker processes in the training parameters, the Gibbs
+     * sampling is distributed to them
+     *
+     * @param folderPath
+     * @param trainingFileName
+     * @param numTopics
+     * @throws IOException
+     */
+    public void trainTopicModellingUsingMallet(String folderPath, String trainingFileName, int numTopics) throws IOException {
+        // Begin by importing documents from text to feature sequences
+        InstanceList instances = getTrainingInstances(folderPath, trainingFileName);
 
-                    // Read next line
-                    inputLine = brInput.readLine();
-                }
+        // Create a model with topics, add instances
+        PipelineMetrics.Stage stage = metrics_.startStage("trainTopicModellingUsingMallet");
+        ParallelTopicModel model = trainingParameters_.newTopicModel(numTopics);
+        model.addInstances(instances);
 
-                // Add words with count to file
-                wordCountMap_ = (HashMap<String, Integer>) Utils.sortByValueDesc(wordCountMap_);
-                for (String word : wordCountMap_.keySet()) {
-                    Utils.writeLine(bwOutputAllWordsWithCount, String.format("%s,%d", word, wordCountMap_.get(word)));
-                }
+        // Run the model, recording the time and log likelihood of the iterations Mallet logs
+        int firstIteration = metrics_.getGibbsIterations();
+        Handler samplerLog = metrics_.recordSamplerLog(ParallelTopicModel.logger);
+        try {
+            if (trainingParameters_.getNumWorkerProcesses() > 0) {
+                // Sample in other processes, leaving the model as if it had been sampled here
+                DistributedTrainer trainer = new DistributedTrainer(model, trainingParameters_.getNumWorkerProcesses(),
+                        trainingParameters_.getCoordinatorPort());
+                trainer.setSpawnWorkers(trainingParameters_.isSpawnWorkerProcesses());
+                trainer.setMetrics(metrics_);
+                if (trainingParameters_.isEarlyStopping())
+                    trainer.setEarlyStopping(new EarlyStopping(trainingParameters_));
+                trainer.estimate();
             } else
-                System.err.println("File not found: " + completePath);
-        } catch (Exception ex) {
-            throw ex;
+                estimate(model);
         } finally {
+            samplerLog.close();
+        }
+        trainedModel_ = model;
+        stage.addRows(instances.size());
+        // Every iteration samples every token
+        stage.addTokens(countTokens(instances) * (metrics_.getGibbsIterations() - firstIteration));
+        stage.stop();
+
+        writeModel(folderPath, model, instances);
+    }
+
+    /**
+     * Trains the topic model with online variational Bayes, reading the training data file in mini-batches. Only the
+     * topic-word parameters are kept in memory. Writes the topic keys and the topic composition in the same format
+     * as Mallet, and an inferencer to test new documents
+     *
+     * @param folderPath
+     * @param trainingFileName
+     * @param numTopics
+     * @throws Exception
+     */
+    public void trainTopicModellingOnline(String folderPath, String trainingFileName, int numTopics) throws Exception {
+        String trainingPath = Paths.get(folderPath, Utils.TRAINING_FOLDER, trainingFileName).toString();
+        if (!Utils.validateFile(trainingPath)) {
+            System.err.println("File not found: " + trainingPath);
+            return;
+        }
+
+        // First pass to find the words and the number of documents
+        Alphabet dataAlphabet = new Alphabet();
+        int numDocuments = 0;
+        BufferedReader brInput = null;
+        try {
+            brInput = Utils.getBufferedReader(trainingPath);
+            String inputLine = brInput.readLine();
+            while (inputLine != null) {
+                for (String token : TextCleaner.tokenize(getTrainingText(inputLine)))
+                    dataAlphabet.lookupIndex(token);
+                numDocuments++;
+                inputLine = brInput.readLine();
+            }
+        } finally {
+            Utils.closeBufferedReader(brInput);
+        }
+        dataAlphabet.stopGrowth();
+        System.out.println(String.format("Online LDA: %d topics, %d documents, %d words", numTopics, numDocuments,
+                dataAlphabet.size()));
+
+        double alpha = trainingParameters_.getAlphaSum() > 0 ? trainingParameters_.getAlphaSum() / numTopics : 1.0 / numTopics;
+        OnlineLda model = new OnlineLda(numTopics, dataAlphabet.size(), numDocuments, alpha,
+                trainingParameters_.getBeta(), trainingParameters_.getRandomSeed());
+        OnlineLda.Document[] batch = new OnlineLda.Document[trainingParameters_.getBatchSize()];
+        for (int pass = 1; pass <= trainingParameters_.getNumPasses(); pass++) {
+            long start = System.nanoTime();
             try {
-                // Close files
+                brInput = Utils.getBufferedReader(trainingPath);
+                int batchSize = readBatch(brInput, dataAlphabet, batch);
+                while (batchSize > 0) {
+                    model.update(batch, batchSize);
+                    batchSize = readBatch(brInput, dataAlphabet, batch);
+                }
+            } finally {
                 Utils.closeBufferedReader(brInput);
-                Utils.closeBufferedWriter(bwOutputAllWords);
-                Utils.closeBufferedWriter(bwOutputAllWordsWithId);
-                Utils.closeBufferedWriter(bwOutputAllWordsWithCount);
-                Utils.closeBufferedWriter(bwOutputTraining);
-            } catch (Exception ex) {
-                // Don't do anything
             }
+            System.out.println(String.format("Pass %d: %.1f seconds", pass, (System.nanoTime() - start) / 1e9));
         }
+
+        writeOnlineModel(folderPath, trainingPath, model, dataAlphabet);
     }
 
     /**
-     * Trains a model for topic modelling using mallet
+     * Writes the topic keys, the topic composition and the inferencer of a model trained online, and deletes the model
+     * state and the instances of a previous Gibbs model. The topic composition is inferred with another pass over the
+     * training data file
      *
      * @param folderPath
-     * @param trainingFileName
-     * @param numTopics
+     * @param trainingPath Path of the training data file
+     * @param model        Trained model
+     * @param dataAlphabet Alphabet of the words
+     * @throws Exception
+     */
+    private void writeOnlineModel(String folderPath, String trainingPath, OnlineLda model, Alphabet dataAlphabet)
+            throws Exception {
+        BufferedReader brInput = null;
+        BufferedWriter bwOutputKeys = null;
+        BufferedWriter bwOutputComposition = null;
+        try {
+            String trainingFolder = Paths.get(folderPath, Utils.TRAINING_FOLDER).toString();
+            deletePreviousClassifier(folderPath);
+            // A model trained online has no Gibbs state to update, the one of the previous model must not be loaded
+            new File(trainingFolder, Utils.DATA_MODEL_MALLET).delete();
+            new File(trainingFolder, Utils.DATA_MODEL_INSTANCES_MALLET).delete();
+
+            // File for topic keys: topic, alpha and top words, as ParallelTopicModel.printTopWords
+            NumberFormat formatter = NumberFormat.getInstance();
+            formatter.setMaximumFractionDigits(5);
+            bwOutputKeys = Utils.getBufferedWriter(trainingFolder, Utils.TOPIC_KEYS_MALLET, false);
+            for (int topic = 0; topic < model.getNumTopics(); topic++) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(topic).append('\t').append(formatter.format(model.getAlpha())).append('\t');
+                for (int type : model.getTopWords(topic, 20))
+                    sb.append(dataAlphabet.lookupObject(type)).append(' ');
+                Utils.writeLine(bwOutputKeys, sb.toString());
+            }
+
+            // File for topic composition: document, name and topics by proportion, as ParallelTopicModel.printDocumentTopics
+            bwOutputComposition = Utils.getBufferedWriter(trainingFolder, Utils.TOPIC_COMPOSITION_MALLET, false);
+            Utils.writeLine(bwOutputComposition, "#doc name topic proportion ...");
+            brInput = Utils.getBufferedReader(trainingPath);
+            OnlineLda.Document[] batch = new OnlineLda.Document[trainingParameters_.getBatchSize()];
+            int doc = 0;
+            int batchSize = readBatch(brInput, dataAlphabet, batch);
+            while (batchSize > 0) {
+                for (int i = 0; i < batchSize; i++) {
+                    double[] proportions = model.getTopicProportions(batch[i]);
+                    StringBuilder sb = new StringBuilder();
+                    sb.append(doc++).append('\t').append(batch[i].name).append('\t');
+                    for (int topic : Utils.sortIndicesDesc(proportions))
+                        sb.append(topic).append('\t').append(proportions[topic]).append('\t');
+                    Utils.writeLine(bwOutputComposition, sb.toString());
+                }
+                batchSize = readBatch(brInput, dataAlphabet, batch);
+            }
+
+            // Save the pipe and the inferencer, to test new documents
+            TopicInferenceService.write(new File(Paths.get(trainingFolder, Utils.DATA_INFERENCER_MALLET).toString()),
+                    newImportPipe(dataAlphabet), model.newInferencer(dataAlphabet));
+        } finally {
+            Utils.closeBufferedReader(brInput);
+            Utils.closeBufferedWriter(bwOutputKeys);
+            Utils.closeBufferedWriter(bwOutputComposition);
+        }
+    }
+
+    /**
+     * Reads the next documents of the training data file
+     *
+     * @param brInput      Reader of the training data file
+     * @param dataAlphabet Alphabet of the words
+     * @param batch        Array to read the documents to
+     * @return number of documents read, 0 at the end of the file
      * @throws IOException
      */
-    public void trainTopicModellingUsingMallet(String folderPath, String trainingFileName, int numTopics) throws IOException {
-        // Begin by importing documents from text to feature sequences
-        ArrayList<Pipe> pipeList = new ArrayList<Pipe>();
+    private static int readBatch(BufferedReader brInput, Alphabet dataAlphabet, OnlineLda.Document[] batch) throws IOException {
+        int batchSize = 0;
+        String inputLine;
+        while (batchSize < batch.length && (inputLine = brInput.readLine()) != null) {
+            int separator = inputLine.indexOf(',');
+            String documentID = separator < 0 ? inputLine : inputLine.substring(0, separator);
+            batch[batchSize++] = new OnlineLda.Document(documentID, TextCleaner.tokenize(getTrainingText(inputLine)), dataAlphabet);
+        }
+        return batchSize;
+    }
 
-        // Pipes: tokenize, map to features
-        pipeList.add(new CharSequence2TokenSequence(Pattern.compile("\\p{L}[\\p{L}\\p{P}]+\\p{L}")));
-        pipeList.add(new TokenSequence2FeatureSequence());
+    /**
+     * Returns the text of a line "id,label,text" of the training data file
+     *
+     * @param inputLine Line of the training data file
+     * @return
+     */
+    private static String getTrainingText(String inputLine) {
+        String[] values = inputLine.split(",", 3);
+        return values.length < 3 ? "" : values[2];
+    }
 
-        InstanceList instances = new InstanceList(new SerialPipes(pipeList));
-        Reader fileReader = Utils.getBufferedReader(Paths.get(folderPath, Utils.TRAINING_FOLDER, trainingFileName).toString());
-        instances.addThruPipe(new CsvIterator(fileReader, Pattern.compile("^(\\S*)[\\s,]*(\\S*)[\\s,]*(.*)$"),
-                3, 2, 1)); // data, label, name fields
+    /**
+     * Loads the model state and the instances saved by training, to add new documents to them. The documents of the
+     * model are marked as seen, so generating the training file afterwards only imports the new documents. Only Gibbs
+     * sampling saves the model state
+     *
+     * @param folderPath
+     * @throws Exception
+     */
+    public void loadTrainedModel(String folderPath) throws Exception {
+        File modelFile = new File(Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_MODEL_MALLET).toString());
+        if (!modelFile.isFile())
+            throw new FileNotFoundException("No model state to update, models trained with the online engine can't be updated: " + modelFile);
+        trainedModel_ = ParallelTopicModel.read(modelFile);
+        trainingInstances_ = InstanceList.load(new File(Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_MODEL_INSTANCES_MALLET).toString()));
+        // Mallet resolves both alphabets to the same instance, new words must grow it
+        trainingInstances_.getDataAlphabet().startGrowth();
+
+        for (Instance instance : trainingInstances_) {
+            // Models trained from the old training file have names "id,label,word"
+            String documentID = instance.getName().toString();
+            int separator = documentID.indexOf(',');
+            documentIds_.add(separator < 0 ? documentID : documentID.substring(0, separator));
+        }
+    }
 
-        // Create a model with topics, add instances
-        ParallelTopicModel model = new ParallelTopicModel(numTopics);
-        model.addInstances(instances);
-        // Use two parallel samplers, which each look at one half the corpus and combine
-        //  statistics after every iteration.
-        model.setNumThreads(2);
-        model.setRandomSeed(1); // To replicate results
+    /**
+     * Adds the new documents of the training instances to the loaded model and runs a limited number of iterations,
+     * starting from the saved topic assignments. The old documents keep their assignments and the new ones start at
+     * random, so the sampler only needs to settle the new documents. Writes the same files as training
+     *
+     * @param folderPath
+     * @param numIterations Number of iterations to run over all the documents
+     * @throws Exception
+     */
+    public void updateTopicModellingUsingMallet(String folderPath, int numIterations) throws Exception {
+        ParallelTopicModel model = trainedModel_;
+        InstanceList instances = trainingInstances_;
+        int numTrainedDocuments = model.getData().size();
+        if (instances.size() == numTrainedDocuments) {
+            System.out.println("No new documents to add to the model");
+            return;
+        }
 
-        // Run the model
-        model.setNumIterations(2000);
+        // Counts are rebuilt from all the topic assignments, with the grown alphabet
+        InstanceList newInstances = new InstanceList(instances.getPipe());
+        for (int i = numTrainedDocuments; i < instances.size(); i++)
+            newInstances.add(instances.get(i));
+        model.addInstances(newInstances);
+        System.out.println(String.format("Added %d documents to the model of %d documents, %d words",
+                newInstances.size(), numTrainedDocuments, instances.getDataAlphabet().size()));
+
+        model.setNumThreads(trainingParameters_.getNumThreads());
+        model.setNumIterations(numIterations);
+        model.setOptimizeInterval(trainingParameters_.getOptimizeInterval());
+        // The model is already past its burn-in
+        model.setBurninPeriod(0);
+        model.setRandomSeed(trainingParameters_.getRandomSeed());
         model.estimate();
 
+        writeModel(folderPath, model, instances);
+    }
+
+    /**
+     * Fits a classifier of the advice codes of every level on the topic proportions of the documents of the trained
+     * model, and writes it next to the inferencer so testing also predicts advice codes. Documents without an advice
+     * code in a level are not used for that level
+     *
+     * @param folderPath
+     * @param numEpochs  Number of passes over the documents
+     * @throws Exception
+     */
+    public void trainAdviceCodeClassifier(String folderPath, int numEpochs) throws Exception {
+        ParallelTopicModel model = trainedModel_;
+        int numDocuments = model.getData().size();
+        int numCodes = adviceCodeIndex_.getNumCodes();
+
+        // Labels of every level are the advice codes found in the level, in order of appearance
+        double[][] features = new double[numDocuments][];
+        int[][] labels = new int[AdviceCodeIndex.NUM_LEVELS][numDocuments];
+        int[][] codeLabels = new int[AdviceCodeIndex.NUM_LEVELS][numCodes];
+        ArrayList<ArrayList<String>> levelCodes = new ArrayList<ArrayList<String>>();
+        for (int level = 0; level < AdviceCodeIndex.NUM_LEVELS; level++) {
+            Arrays.fill(codeLabels[level], -1);
+            levelCodes.add(new ArrayList<String>());
+        }
+        for (int doc = 0; doc < numDocuments; doc++) {
+            features[doc] = model.getTopicProbabilities(doc);
+            int enquiry = adviceCodeIndex_.getEnquiry(model.getData().get(doc).instance.getName().toString());
+            for (int level = 0; level < AdviceCodeIndex.NUM_LEVELS; level++) {
+                int codeId = adviceCodeIndex_.getCodeId(enquiry, level);
+                if (codeId != AdviceCodeIndex.NO_CODE && codeLabels[level][codeId] < 0) {
+                    codeLabels[level][codeId] = levelCodes.get(level).size();
+                    levelCodes.get(level).add(adviceCodeIndex_.getCode(codeId));
+                }
+                labels[level][doc] = codeId == AdviceCodeIndex.NO_CODE ? -1 : codeLabels[level][codeId];
+            }
+        }
+        String[][] codes = new String[AdviceCodeIndex.NUM_LEVELS][];
+        for (int level = 0; level < AdviceCodeIndex.NUM_LEVELS; level++)
+            codes[level] = levelCodes.get(level).toArray(new String[0]);
+
+        AdviceCodeClassifier classifier = new AdviceCodeClassifier(features, labels, codes, numEpochs,
+                trainingParameters_.getRandomSeed());
+
+        // Accuracy of the most probable advice code on the training documents
+        for (int level = 0; level < AdviceCodeIndex.NUM_LEVELS; level++) {
+            int numLabelled = 0;
+            int numCorrect = 0;
+            for (int doc = 0; doc < numDocuments; doc++) {
+                if (labels[level][doc] < 0)
+                    continue;
+                numLabelled++;
+                int[] best = Utils.topIndicesDesc(classifier.getProbabilities(level, features[doc]), 1);
+                if (best.length > 0 && best[0] == labels[level][doc])
+                    numCorrect++;
+            }
+            System.out.println(String.format("Advice code level %d: %d codes, training accuracy %.4f over %d documents",
+                    level + 1, codes[level].length, numLabelled == 0 ? 0 : (double) numCorrect / numLabelled, numLabelled));
+        }
+
+        classifier.write(new File(Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_ADVICE_CODE_CLASSIFIER).toString()));
+    }
+
+    /**
+     * Writes the topic keys, the topic composition, the model state, the instances and the inferencer of a trained
+     * model
+     *
+     * @param folderPath
+     * @param model      Trained model
+     * @param instances  Instances the model was trained with
+     * @throws IOException
+     */
+    private void writeModel(String folderPath, ParallelTopicModel model, InstanceList instances) throws IOException {
+        // The training data file may not have been written, make sure the folder exists
+        Utils.createDirectory(Paths.get(folderPath, Utils.TRAINING_FOLDER).toString());
+        deletePreviousClassifier(folderPath);
+
         // File for topic keys
         File fileOutput = new File(Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.TOPIC_KEYS_MALLET).toString());
         model.printTopWords(fileOutput, 20, false);
 
         // File for topic composition
         fileOutput = new File(Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.TOPIC_COMPOSITION_MALLET).toString());
-        model.printDocumentTopics(new PrintWriter(fileOutput));
+        PrintWriter pwOutputComposition = new PrintWriter(fileOutput, "UTF-8");
+        try {
+            model.printDocumentTopics(pwOutputComposition);
+        } finally {
+            // Mallet does not close the writer, the end of the file was lost
+            pwOutputComposition.close();
+        }
 
         // Save model state and instances
         model.write(new File(Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_MODEL_MALLET).toString()));
         instances.save(new File(Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_MODEL_INSTANCES_MALLET).toString()));
+        // Save the pipe and the inferencer, the only parts needed to test new documents
+        TopicInferenceService.write(new File(Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_INFERENCER_MALLET).toString()),
+                instances.getPipe(), model.getInferencer());
+    }
+
+    /**
+     * Deletes the advice code classifier of the previous model, which does not fit the topics of a new one. Every
+     * path writing an inferencer calls it first
+     *
+     * @param folderPath
+     */
+    private static void deletePreviousClassifier(String folderPath) {
+        new File(Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_ADVICE_CODE_CLASSIFIER).toString()).delete();
+    }
+
+    /**
+     * Runs the sampler of a model. With early stopping, runs it in chunks and stops when the log likelihood has not
+     * improved enough over the window, when the time budget runs out or after the number of iterations
+     *
+     * @param model Model with instances
+     * @throws IOException
+     */
+    private void estimate(ParallelTopicModel model) throws IOException {
+        if (!trainingParameters_.isEarlyStopping()) {
+            model.estimate();
+            return;
+        }
+
+        int numIterations = trainingParameters_.getNumIterations();
+        int burninPeriod = trainingParameters_.getBurninPeriod();
+        EarlyStopping earlyStopping = new EarlyStopping(trainingParameters_);
+        int chunkLength = earlyStopping.getCheckInterval();
+        if (chunkLength != trainingParameters_.getConvergenceInterval())
+            System.out.println(String.format("Checking convergence every %d iterations, a multiple of the optimize interval",
+                    chunkLength));
+        int iterations = 0;
+        int chunks = 0;
+        while (iterations < numIterations) {
+            int chunk = Math.min(chunkLength, numIterations - iterations);
+            // Every chunk counts its iterations from 1, shift the burn-in and the seed accordingly
+            model.setBurninPeriod(Math.max(0, burninPeriod - iterations));
+            model.setRandomSeed(trainingParameters_.getRandomSeed() + chunks);
+            model.setNumIterations(chunk);
+            model.estimate();
+            iterations += chunk;
+            chunks++;
+
+            if (earlyStopping.isStopping(iterations, model.modelLogLikelihood()))
+                break;
+        }
+    }
+
+    /**
+     * Returns the instances imported when generating the training file. If the training file was not generated in
+     * this run, reads the binary corpus written by the last preprocessing, or imports the documents of the training
+     * file to feature sequences if there is no binary corpus
+     *
+     * @param folderPath
+     * @param trainingFileName
+     * @return
+     * @throws IOException
+     */
+    private InstanceList getTrainingInstances(String folderPath, String trainingFileName) throws IOException {
+        if (trainingInstances_ != null)
+            return trainingInstances_;
+
+        String corpusPath = Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_CORPUS_BINARY).toString();
+        if (Utils.validateFile(corpusPath)) {
+            BinaryCorpus corpus = BinaryCorpus.open(new File(corpusPath));
+            return corpus.toInstances(corpus.newAlphabet());
+        }
+
+        InstanceList instances = new InstanceList(newImportPipe(new Alphabet()));
+        Reader fileReader = Utils.getBufferedReader(Paths.get(folderPath, Utils.TRAINING_FOLDER, trainingFileName).toString());
+        instances.addThruPipe(new CsvIterator(fileReader, Pattern.compile(Utils.TRAINING_LINE_REGEX),
+                3, 2, 1)); // data, label, name fields
+        fileReader.close();
+        return instances;
+    }
+
+    /**
+     * Measures the time per Gibbs iteration of the training with each number of sampler threads, on the same corpus,
+     * and writes it to the scaling report: threads, iterations, seconds, ms per iteration and speedup over the first
+     * number of threads
+     *
+     * @param folderPath
+     * @param trainingFileName
+     * @param numTopics
+     * @param threadCounts     Numbers of sampler threads to measure
+     * @param numIterations    Number of iterations to run with each number of threads
+     * @throws IOException
+     */
+    public void reportTrainingScaling(String folderPath, String trainingFileName, int numTopics, int[] threadCounts,
+                                      int numIterations) throws IOException {
+        BufferedWriter bwOutputReport = null;
+        try {
+            InstanceList instances = getTrainingInstances(folderPath, trainingFileName);
+
+            bwOutputReport = Utils.getBufferedWriter(Paths.get(folderPath, Utils.TRAINING_FOLDER).toString(), Utils.SCALING_REPORT_FILENAME, false);
+            Utils.writeLine(bwOutputReport, "threads,iterations,seconds,ms_per_iteration,speedup");
+            double firstMsPerIteration = 0;
+            for (int numThreads : threadCounts) {
+                ParallelTopicModel model = trainingParameters_.newTopicModel(numTopics);
+                model.setNumThreads(numThreads);
+                model.setNumIterations(numIterations);
+                // Don't measure the time to print topics
+                model.setTopicDisplay(0, 0);
+                model.addInstances(instances);
+
+                long start = System.nanoTime();
+                model.estimate();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                double msPerIteration = seconds * 1000 / numIterations;
+                if (firstMsPerIteration == 0)
+                    firstMsPerIteration = msPerIteration;
+
+                String line = String.format(Locale.ROOT, "%d,%d,%.3f,%.3f,%.2f", numThreads, numIterations, seconds,
+                        msPerIteration, firstMsPerIteration / msPerIteration);
+                Utils.writeLine(bwOutputReport, line);
+                System.out.println(line);
+            }
+        } finally {
+            Utils.closeBufferedWriter(bwOutputReport);
+        }
+    }
+
+    /**
+     * Trains one model per number of topics on the same instances, several at a time within a budget of sampler
+     * threads, and writes the sweep report: topics, sampler threads, iterations, seconds, held-out log likelihood,
+     * held-out perplexity per token and mean topic coherence. A part of the documents is held out of training to
+     * measure the log likelihood
+     *
+     * @param folderPath
+     * @param trainingFileName
+     * @param topicCounts      Numbers of topics to train
+     * @param threadBudget     Total number of sampler threads
+     * @param heldOutFraction  Fraction of the documents held out of training
+     * @throws Exception
+     */
+    public void sweepTopicCounts(String folderPath, String trainingFileName, int[] topicCounts, int threadBudget,
+                                 double heldOutFraction) throws Exception {
+        BufferedWriter bwOutputReport = null;
+        ExecutorService modelExecutor = null;
+        try {
+            InstanceList instances = getTrainingInstances(folderPath, trainingFileName);
+            // All the models share the instances, they are only read in training
+            InstanceList[] split = instances.split(new Randoms(trainingParameters_.getRandomSeed()),
+                    new double[]{1 - heldOutFraction, heldOutFraction});
+            InstanceList trainingInstances = split[0];
+            InstanceList heldOutInstances = split[1];
+            long heldOutTokens = countTokens(heldOutInstances);
+
+            // Models run at the same time with the same number of sampler threads each
+            int threadsPerModel = Math.max(1, threadBudget / topicCounts.length);
+            int numConcurrentModels = Math.max(1, threadBudget / threadsPerModel);
+            System.out.println(String.format("Sweep: %d models, %d at a time with %d threads each, %d training and %d held-out documents",
+                    topicCounts.length, numConcurrentModels, threadsPerModel, trainingInstances.size(), heldOutInstances.size()));
+
+            modelExecutor = Executors.newFixedThreadPool(numConcurrentModels);
+            ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+            for (int numTopics : topicCounts) {
+                results.add(modelExecutor.submit(() -> {
+                    long start = System.nanoTime();
+                    ParallelTopicModel model = trainingParameters_.newTopicModel(numTopics);
+                    model.setNumThreads(threadsPerModel);
+                    // Don't interleave the topics of the models in the output
+                    model.setTopicDisplay(0, 0);
+                    model.addInstances(trainingInstances);
+                    estimate(model);
+                    double seconds = (System.nanoTime() - start) / 1e9;
+
+                    double logLikelihood = 0;
+                    if (heldOutInstances.size() > 0)
+                        logLikelihood = model.getProbEstimator().evaluateLeftToRight(heldOutInstances, 10, false, null);
+                    double perplexity = heldOutTokens > 0 ? Math.exp(-logLikelihood / heldOutTokens) : 0;
+
+                    double coherence = 0;
+                    for (double score : new TopicModelDiagnostics(model, 20).getCoherence().scores)
+                        coherence += score;
+                    coherence /= numTopics;
+
+                    return String.format(Locale.ROOT, "%d,%d,%d,%.3f,%.2f,%.2f,%.4f", numTopics, threadsPerModel,
+                            trainingParameters_.getNumIterations(), seconds, logLikelihood, perplexity, coherence);
+                }));
+            }
+
+            bwOutputReport = Utils.getBufferedWriter(Paths.get(folderPath, Utils.TRAINING_FOLDER).toString(), Utils.SWEEP_REPORT_FILENAME, false);
+            Utils.writeLine(bwOutputReport, "topics,threads,iterations,seconds,held_out_log_likelihood,held_out_perplexity,coherence");
+            for (Future<String> result : results) {
+                String line = result.get();
+                Utils.writeLine(bwOutputReport, line);
+                System.out.println(line);
+            }
+        } finally {
+            if (modelExecutor != null)
+                modelExecutor.shutdownNow();
+            Utils.closeBufferedWriter(bwOutputReport);
+        }
+    }
+
+    /**
+     * Returns the number of tokens of some instances
+     *
+     * @param instances Instances with feature sequences as data
+     * @return
+     */
+    private static long countTokens(InstanceList instances) {
+        long numTokens = 0;
+        for (Instance instance : instances)
+            numTokens += ((FeatureSequence) instance.getData()).getLength();
+        return numTokens;
+    }
+
+    /**
+     * Creates the pipe that imports documents from text to feature sequences
+     *
+     * @param dataAlphabet Alphabet of the features
+     * @return
+     */
+    public static Pipe newImportPipe(Alphabet dataAlphabet) {
+        ArrayList<Pipe> pipeList = new ArrayList<Pipe>();
+
+        // Pipes: tokenize, map to features
+        pipeList.add(new CharSequence2TokenSequence(Pattern.compile(Utils.TOKEN_REGEX)));
+        pipeList.add(new TokenSequence2FeatureSequence(dataAlphabet));
+
+        return new SerialPipes(pipeList);
     }
 
     /**
@@ -353,49 +1193,91 @@ public class TopicModelling {
      *
      * @param folderPath
      * @param document
+     * @param numAdviceCodes Number of advice codes predicted per level, if an advice code classifier was trained
      * @throws Exception
      */
-    public void testTopicModellingUsingMallet(String folderPath, String document) throws Exception {
-        ParallelTopicModel model = ParallelTopicModel.read(new File(Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_MODEL_MALLET).toString()));
-        InstanceList instances = InstanceList.load(new File(Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_MODEL_INSTANCES_MALLET).toString()));
+    public void testTopicModellingUsingMallet(String folderPath, String document, int numAdviceCodes) throws Exception {
+        TopicInferenceService inferenceService = loadInferenceService(folderPath);
+        PipelineMetrics.Stage stage = metrics_.startStage("testTopicModellingUsingMallet");
+        double[] testProbabilities = inferenceService.getTopicProbabilities(document);
+        stage.addRows(1);
+        stage.stop();
+        System.out.println(TopicInferenceService.formatTopicProbabilities(testProbabilities));
+        if (inferenceService.getAdviceCodeClassifier() != null && numAdviceCodes > 0)
+            System.out.println(inferenceService.getAdviceCodeClassifier().formatTopAdviceCodes(testProbabilities, numAdviceCodes));
+    }
 
-        // Clean string
-        document = Utils.cleanString(document, stopWordsStringPattern_, otherWordsStringPattern_, wordCountMap_);
-        // Create a new instance with the document, empty target and source fields.
-        InstanceList testing = new InstanceList(instances.getPipe());
-        testing.addThruPipe(new Instance(document, null, "Test Instance", null));
-
-        // Create the inferencer for new documents and get probabilities of topics
-        TopicInferencer inferencer = model.getInferencer();
-        double[] testProbabilities = inferencer.getSampledDistribution(testing.get(0), 30, 1, 5);
-
-        // Create map where key is topic and value is probability, then sort by value.
-        HashMap<Integer, Double> probabilitiesMap = new HashMap<Integer, Double>();
-        for (int i = 0; i < testProbabilities.length; i++) {
-            probabilitiesMap.put(i, testProbabilities[i]);
+    /**
+     * Loads the pipe and the inferencer saved by training and creates a service to infer the topics of new documents.
+     * Models trained before the inferencer file existed are loaded from the model state and the instances. The
+     * advice code classifier is loaded too, if one was trained with the topics of the model
+     *
+     * @param folderPath
+     * @return
+     * @throws Exception
+     */
+    public TopicInferenceService loadInferenceService(String folderPath) throws Exception {
+        String inferencerPath = Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_INFERENCER_MALLET).toString();
+        TopicInferenceService inferenceService;
+        if (Utils.validateFile(inferencerPath))
+            inferenceService = TopicInferenceService.read(new File(inferencerPath), textCleaner_);
+        else {
+            ParallelTopicModel model = ParallelTopicModel.read(new File(Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_MODEL_MALLET).toString()));
+            InstanceList instances = InstanceList.load(new File(Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_MODEL_INSTANCES_MALLET).toString()));
+
+            // Create the inferencer for new documents
+            inferenceService = new TopicInferenceService(textCleaner_, instances.getPipe(), model.getInferencer());
         }
-        probabilitiesMap = (HashMap<Integer, Double>) Utils.sortByValueDesc(probabilitiesMap);
-        System.out.println(probabilitiesMap);
+
+        // Advice codes are predicted only if a classifier was trained with the model
+        String classifierPath = Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.DATA_ADVICE_CODE_CLASSIFIER).toString();
+        if (Utils.validateFile(classifierPath)) {
+            AdviceCodeClassifier classifier = AdviceCodeClassifier.read(new File(classifierPath));
+            // A classifier left by another model predicts from topics that are not the ones of this model
+            if (classifier.getNumTopics() == inferenceService.getNumTopics())
+                inferenceService.setAdviceCodeClassifier(classifier);
+            else
+                System.err.println(String.format("Advice code classifier ignored, trained with %d topics instead of %d: %s",
+                        classifier.getNumTopics(), inferenceService.getNumTopics(), classifierPath));
+        }
+        inferenceService.setMetrics(metrics_);
+        return inferenceService;
     }
 
-    public void generateFilePerTopic(String folderPath, String fileName, String splitChar, String pathAdviceCodesPerId)
-            throws Exception {
-        // TODO: modify for new files generated by mallet. Field 2 has id,X,word. It used to have the path of the file of the document.
+    /**
+     * Generates the files per topic from the topic composition of the trained model, reading it once: the words of
+     * every document in the file of its topic with the highest proportion, the topic of every id, and the count of
+     * every advice code per topic for each level and for all levels together
+     *
+     * @param folderPath
+     * @param trainingFileName
+     * @throws Exception
+     */
+    public void generateFilePerTopic(String folderPath, String trainingFileName) throws Exception {
         BufferedReader brInput = null;
         BufferedWriter bwOutputIdsPerTopic = null;
+        BufferedWriter[] bwOutputTopics = new BufferedWriter[0];
         try {
-            String completePath = Paths.get(folderPath, fileName).toString();
+            String completePath = Paths.get(folderPath, Utils.TRAINING_FOLDER, Utils.TOPIC_COMPOSITION_MALLET).toString();
             if (Utils.validateFile(completePath)) {
-
-                // Map with topic number, and a map of advice code with its count
-                HashMap<Integer, HashMap<String, Integer>> topicMapAdviceCodeLevel_1 = new HashMap<Integer, HashMap<String, Integer>>();
-                HashMap<Integer, HashMap<String, Integer>> topicMapAdviceCodeLevel_2 = new HashMap<Integer, HashMap<String, Integer>>();
-                HashMap<Integer, HashMap<String, Integer>> topicMapAdviceCodeLevel_3 = new HashMap<Integer, HashMap<String, Integer>>();
-                HashMap<Integer, HashMap<String, Integer>> topicMapAdviceCodeAllLevels = new HashMap<Integer, HashMap<String, Integer>>();
-
+                // Documents in the same order as the topic composition
+                InstanceList instances = getTrainingInstances(folderPath, trainingFileName);
+
+                // Count of every advice code per topic: level, advice code id + 1, topic. Id 0 is no advice code
+                int numCodes = adviceCodeIndex_.getNumCodes() + 1;
+                int[][][] adviceCodeCounts = new int[AdviceCodeIndex.NUM_LEVELS][numCodes][];
+                // Count of every combination of the advice codes of all levels per topic, in order of appearance
+                LongIntMap combinationIds = new LongIntMap();
+                ArrayList<int[]> combinations = new ArrayList<int[]>();
+                ArrayList<int[]> combinationCounts = new ArrayList<int[]>();
+                int[] codeIds = new int[AdviceCodeIndex.NUM_LEVELS];
+
+                String topicsFolder = Paths.get(folderPath, Utils.TOPICS_FOLDER).toString();
+                Utils.createDirectory(topicsFolder);
                 // File for ids with topic
-                bwOutputIdsPerTopic = Utils.getBufferedWriter(folderPath, "topicperid.csv", true);
+                bwOutputIdsPerTopic = Utils.getBufferedWriter(folderPath, Utils.TOPIC_PER_ID_FILENAME, false);
 
+                StringBuilder sb = new StringBuilder();
                 brInput = Utils.getBufferedReader(completePath);
                 String inputLine = brInput.readLine();
                 // Read lines
@@ -406,225 +1288,98 @@ public class TopicModelling {
                         continue;
                     }
 
-                    // Get file name
-                    String[] values = inputLine.split(splitChar, -1);
-                    String originalFilePath = values[1].trim().substring(6);
-
-                    // Get id
-                    String[] fileNameValues = originalFilePath.split("/");
-                    String id = fileNameValues[fileNameValues.length - 1].replaceAll(".txt", "");
-
-                    // Get file content
-                    BufferedReader brOriginalInput = Utils.getBufferedReader(originalFilePath);
-                    String originalFileContent = "";
-                    String inputOriginalLine = brOriginalInput.readLine();
-                    // Read lines
-                    while (inputOriginalLine != null) {
-                        // Do not process empty lines
-                        if (inputOriginalLine.isEmpty()) {
-                            inputOriginalLine = brOriginalInput.readLine();
-                            continue;
-                        }
-
-                        originalFileContent += inputOriginalLine + " ";
-                        inputOriginalLine = brOriginalInput.readLine();
-                    }
-                    brOriginalInput.close();
-
-                    BigDecimal bestProbOfTopic = new BigDecimal(-1);
-                    int topicNumber = -1;
+                    // doc, name, then pairs of topic and proportion
+                    String[] values = inputLine.split("\t");
+                    int doc = Integer.parseInt(values[0]);
+                    String id = values[1];
+                    // Every row has all the topics
+                    int numTopics = (values.length - 2) / 2;
+                    if (bwOutputTopics.length == 0)
+                        bwOutputTopics = new BufferedWriter[numTopics];
 
                     // Get best topic with highest probability
-                    for (int i = 2; i < values.length; i++) {
-                        BigDecimal probOfTopic = new BigDecimal(values[i]);
-                        if (probOfTopic.compareTo(bestProbOfTopic) > 0) {
+                    int topicNumber = -1;
+                    double bestProbOfTopic = -1;
+                    for (int i = 2; i + 1 < values.length; i += 2) {
+                        double probOfTopic = Double.parseDouble(values[i + 1]);
+                        if (probOfTopic > bestProbOfTopic) {
                             bestProbOfTopic = probOfTopic;
-                            topicNumber = i - 1;
+                            topicNumber = Integer.parseInt(values[i]);
                         }
                     }
 
                     // Append data to complete listing of ids with topic with highest probability
-                    bwOutputIdsPerTopic.write(String.format("%s,%s", id, topicNumber));
-                    bwOutputIdsPerTopic.newLine();
-
-                    // Append data to file per topic
-                    String fileNameTopic = topicNumber + ".txt";
-                    String folderPathTopic = folderPath + "topics/";
-                    Utils.createDirectory(folderPathTopic);
-                    File fileTopic = new File(folderPathTopic + fileNameTopic);
-                    BufferedWriter bwOutputTopic = new BufferedWriter(new FileWriter(fileTopic, true));
-                    bwOutputTopic.write(originalFileContent);
-                    bwOutputTopic.close();
-
-                    // Add to advice code level 1
-                    String adviceCodeLevel1 = idAdviceCodeLevel1Map_.get(id);
-                    if (topicMapAdviceCodeLevel_1.containsKey(topicNumber)) {
-                        int countPerAdviceCode = 1;
-                        HashMap<String, Integer> adviceCodePerTopicMap = topicMapAdviceCodeLevel_1.get(topicNumber);
-                        if (adviceCodePerTopicMap.containsKey(adviceCodeLevel1))
-                            countPerAdviceCode = adviceCodePerTopicMap.get(adviceCodeLevel1) + 1; // add 1 to advice code count
-
-                        adviceCodePerTopicMap.put(adviceCodeLevel1, countPerAdviceCode);
-
-                        // add advice code count to topic
-                        topicMapAdviceCodeLevel_1.put(topicNumber, adviceCodePerTopicMap);
-                    } else {
-                        int countPerAdviceCode = 1;
-                        HashMap<String, Integer> adviceCodePerTopicMap = new HashMap<String, Integer>();
-                        adviceCodePerTopicMap.put(adviceCodeLevel1, countPerAdviceCode);
-
-                        // add advice code count to topic
-                        topicMapAdviceCodeLevel_1.put(topicNumber, adviceCodePerTopicMap);
+                    Utils.writeLine(bwOutputIdsPerTopic, String.format("%s,%d", id, topicNumber));
+
+                    // Append the words of the document to the file of its topic, kept open until the end
+                    if (bwOutputTopics[topicNumber] == null)
+                        bwOutputTopics[topicNumber] = Utils.getBufferedWriter(topicsFolder, topicNumber + ".txt", false);
+                    FeatureSequence tokens = (FeatureSequence) instances.get(doc).getData();
+                    sb.setLength(0);
+                    for (int position = 0; position < tokens.getLength(); position++) {
+                        if (position > 0)
+                            sb.append(' ');
+                        sb.append(tokens.getObjectAtPosition(position));
                     }
-
-                    // Add to advice code level 2
-                    String adviceCodeLevel2 = idAdviceCodeLevel2Map_.get(id);
-                    if (topicMapAdviceCodeLevel_2.containsKey(topicNumber)) {
-                        int countPerAdviceCode = 1;
-                        HashMap<String, Integer> adviceCodePerTopicMap = topicMapAdviceCodeLevel_2.get(topicNumber);
-                        if (adviceCodePerTopicMap.containsKey(adviceCodeLevel2))
-                            countPerAdviceCode = adviceCodePerTopicMap.get(adviceCodeLevel2) + 1; // add 1 to advice code count
-
-                        adviceCodePerTopicMap.put(adviceCodeLevel2, countPerAdviceCode);
-
-                        // add advice code count to topic
-                        topicMapAdviceCodeLevel_2.put(topicNumber, adviceCodePerTopicMap);
-                    } else {
-                        int countPerAdviceCode = 1;
-                        HashMap<String, Integer> adviceCodePerTopicMap = new HashMap<String, Integer>();
-                        adviceCodePerTopicMap.put(adviceCodeLevel2, countPerAdviceCode);
-
-                        // add advice code count to topic
-                        topicMapAdviceCodeLevel_2.put(topicNumber, adviceCodePerTopicMap);
+                    Utils.writeLine(bwOutputTopics[topicNumber], sb.toString());
+
+                    // Add to the advice codes of every level and of all levels
+                    int enquiry = adviceCodeIndex_.getEnquiry(id);
+                    long combination = 0;
+                    for (int level = 0; level < AdviceCodeIndex.NUM_LEVELS; level++) {
+                        codeIds[level] = adviceCodeIndex_.getCodeId(enquiry, level) + 1;
+                        addAdviceCode(adviceCodeCounts[level], codeIds[level], topicNumber, numTopics);
+                        combination = combination * numCodes + codeIds[level];
                     }
-
-                    // Add to advice code level 3
-                    String adviceCodeLevel3 = idAdviceCodeLevel3Map_.get(id);
-                    if (topicMapAdviceCodeLevel_3.containsKey(topicNumber)) {
-                        int countPerAdviceCode = 1;
-                        HashMap<String, Integer> adviceCodePerTopicMap = topicMapAdviceCodeLevel_3.get(topicNumber);
-                        if (adviceCodePerTopicMap.containsKey(adviceCodeLevel3))
-                            countPerAdviceCode = adviceCodePerTopicMap.get(adviceCodeLevel3) + 1; // add 1 to advice code count
-
-                        adviceCodePerTopicMap.put(adviceCodeLevel3, countPerAdviceCode);
-
-                        // add advice code count to topic
-                        topicMapAdviceCodeLevel_3.put(topicNumber, adviceCodePerTopicMap);
-                    } else {
-                        int countPerAdviceCode = 1;
-                        HashMap<String, Integer> adviceCodePerTopicMap = new HashMap<String, Integer>();
-                        adviceCodePerTopicMap.put(adviceCodeLevel3, countPerAdviceCode);
-
-                        // add advice code count to topic
-                        topicMapAdviceCodeLevel_3.put(topicNumber, adviceCodePerTopicMap);
-                    }
-
-                    // Add to advice code all levels
-                    String adviceCodeAllLevels = String.format("%s|%s|%s", idAdviceCodeLevel1Map_.get(id),
-                            idAdviceCodeLevel2Map_.get(id), idAdviceCodeLevel3Map_.get(id));
-                    if (topicMapAdviceCodeAllLevels.containsKey(topicNumber)) {
-                        int countPerAdviceCode = 1;
-                        HashMap<String, Integer> adviceCodePerTopicMap = topicMapAdviceCodeAllLevels.get(topicNumber);
-                        if (adviceCodePerTopicMap.containsKey(adviceCodeAllLevels))
-                            countPerAdviceCode = adviceCodePerTopicMap.get(adviceCodeAllLevels) + 1; // add 1 to advice code count
-
-                        adviceCodePerTopicMap.put(adviceCodeAllLevels, countPerAdviceCode);
-
-                        // add advice code count to topic
-                        topicMapAdviceCodeAllLevels.put(topicNumber, adviceCodePerTopicMap);
-                    } else {
-                        int countPerAdviceCode = 1;
-                        HashMap<String, Integer> adviceCodePerTopicMap = new HashMap<String, Integer>();
-                        adviceCodePerTopicMap.put(adviceCodeAllLevels, countPerAdviceCode);
-
-                        // add advice code count to topic
-                        topicMapAdviceCodeAllLevels.put(topicNumber, adviceCodePerTopicMap);
+                    int combinationId = combinationIds.get(combination);
+                    if (combinationId == LongIntMap.NO_VALUE) {
+                        combinationId = combinations.size();
+                        combinationIds.put(combination, combinationId);
+                        combinations.add(codeIds.clone());
+                        combinationCounts.add(new int[numTopics]);
                     }
+                    combinationCounts.get(combinationId)[topicNumber]++;
 
                     inputLine = brInput.readLine();
                 }
 
-                // Create file for advice code per topic for Level 1
-                for (Integer topicNumber : topicMapAdviceCodeLevel_1.keySet()) {
-
-                    // Create file per topic with advice codes
-                    String fileNameTopic = topicNumber + ".txt";
-                    String folderPathTopic = folderPath + "topicsadvicecode1/";
-                    Utils.createDirectory(folderPathTopic);
-                    File fileTopic = new File(folderPathTopic + fileNameTopic);
-                    BufferedWriter bwOutputTopic = new BufferedWriter(new FileWriter(fileTopic, true));
-
-                    HashMap<String, Integer> adviceCodePerTopicMap = topicMapAdviceCodeLevel_1.get(topicNumber);
-
-                    for (String advicecode : adviceCodePerTopicMap.keySet()) {
-
-                        int countAdviceCode = adviceCodePerTopicMap.get(advicecode);
-                        bwOutputTopic.write(String.format("%s;%d", advicecode, countAdviceCode));
-                        bwOutputTopic.newLine();
-                    }
-
-                    bwOutputTopic.close();
-                }
-
-                // Create file for advice code per topic for Level 2
-                for (Integer topicNumber : topicMapAdviceCodeLevel_2.keySet()) {
-
-                    // Create file per topic with advice codes
-                    String fileNameTopic = topicNumber + ".txt";
-                    String folderPathTopic = folderPath + "topicsadvicecode2/";
-                    Utils.createDirectory(folderPathTopic);
-                    File fileTopic = new File(folderPathTopic + fileNameTopic);
-                    BufferedWriter bwOutputTopic = new BufferedWriter(new FileWriter(fileTopic, true));
-
-                    HashMap<String, Integer> adviceCodePerTopicMap = topicMapAdviceCodeLevel_2.get(topicNumber);
-
-                    for (String advicecode : adviceCodePerTopicMap.keySet()) {
-
-                        int countAdviceCode = adviceCodePerTopicMap.get(advicecode);
-                        bwOutputTopic.write(String.format("%s;%d", advicecode, countAdviceCode));
-                        bwOutputTopic.newLine();
-                    }
-
-                    bwOutputTopic.close();
-                }
-
-                // Create file for advice code per topic for Level 3
-                for (Integer topicNumber : topicMapAdviceCodeLevel_3.keySet()) {
-
-                    // Create file per topic with advice codes
-                    String fileNameTopic = topicNumber + ".txt";
-                    String folderPathTopic = folderPath + "topicsadvicecode3/";
-                    Utils.createDirectory(folderPathTopic);
-                    File fileTopic = new File(folderPathTopic + fileNameTopic);
-                    BufferedWriter bwOutputTopic = new BufferedWriter(new FileWriter(fileTopic, true));
-
-                    HashMap<String, Integer> adviceCodePerTopicMap = topicMapAdviceCodeLevel_3.get(topicNumber);
-
-                    for (String advicecode : adviceCodePerTopicMap.keySet()) {
-
-                        int countAdviceCode = adviceCodePerTopicMap.get(advicecode);
-                        bwOutputTopic.write(String.format("%s;%d", advicecode, countAdviceCode));
-                        bwOutputTopic.newLine();
+                // Create file for advice code per topic for every level
+                for (int level = 0; level < AdviceCodeIndex.NUM_LEVELS; level++) {
+                    String levelFolder = Paths.get(folderPath, Utils.TOPICS_ADVICE_CODE_FOLDER + (level + 1)).toString();
+                    for (int topicNumber = 0; topicNumber < bwOutputTopics.length; topicNumber++) {
+                        BufferedWriter bwOutputTopic = null;
+                        try {
+                            for (int codeId = 0; codeId < numCodes; codeId++) {
+                                int[] counts = adviceCodeCounts[level][codeId];
+                                if (counts == null || counts[topicNumber] == 0)
+                                    continue;
+                                if (bwOutputTopic == null)
+                                    bwOutputTopic = Utils.getBufferedWriter(levelFolder, topicNumber + ".txt", false);
+                                Utils.writeLine(bwOutputTopic, String.format("%s;%d", getAdviceCode(codeId), counts[topicNumber]));
+                            }
+                        } finally {
+                            Utils.closeBufferedWriter(bwOutputTopic);
+                        }
                     }
-
-                    bwOutputTopic.close();
                 }
 
                 // Create file for advice code per topic for all levels
-                String fileNameTopic = "topicsadvicecode.csv";
-                File fileTopic = new File(folderPath + fileNameTopic);
-                BufferedWriter bwOutputTopic = new BufferedWriter(new FileWriter(fileTopic, true));
-                for (Integer topicNumber : topicMapAdviceCodeAllLevels.keySet()) {
-                    // Get advice codes by topic number
-                    HashMap<String, Integer> adviceCodePerTopicMap = topicMapAdviceCodeAllLevels.get(topicNumber);
-                    for (String advicecode : adviceCodePerTopicMap.keySet()) {
-                        // Get advice code count
-                        int countAdviceCode = adviceCodePerTopicMap.get(advicecode);
-                        bwOutputTopic.write(String.format("%s;%s;%d", topicNumber, advicecode, countAdviceCode));
-                        bwOutputTopic.newLine();
+                BufferedWriter bwOutputTopic = null;
+                try {
+                    bwOutputTopic = Utils.getBufferedWriter(folderPath, Utils.TOPICS_ADVICE_CODE_FILENAME, false);
+                    for (int topicNumber = 0; topicNumber < bwOutputTopics.length; topicNumber++) {
+                        for (int combinationId = 0; combinationId < combinations.size(); combinationId++) {
+                            int countAdviceCode = combinationCounts.get(combinationId)[topicNumber];
+                            if (countAdviceCode == 0)
+                                continue;
+                            int[] combination = combinations.get(combinationId);
+                            Utils.writeLine(bwOutputTopic, String.format("%d;%s|%s|%s;%d", topicNumber, getAdviceCode(combination[0]),
+                                    getAdviceCode(combination[1]), getAdviceCode(combination[2]), countAdviceCode));
+                        }
                     }
+                } finally {
+                    Utils.closeBufferedWriter(bwOutputTopic);
                 }
-                bwOutputTopic.close();
             } else
                 System.err.println("File not found: " + completePath);
         } catch (Exception ex) {
@@ -634,9 +1389,35 @@ public class TopicModelling {
                 // Close files
                 Utils.closeBufferedReader(brInput);
                 Utils.closeBufferedWriter(bwOutputIdsPerTopic);
+                for (BufferedWriter bwOutputTopic : bwOutputTopics)
+                    Utils.closeBufferedWriter(bwOutputTopic);
             } catch (Exception ex) {
                 // Don't do anything
             }
         }
     }
+
+    /**
+     * Adds one to the count of an advice code in a topic
+     *
+     * @param adviceCodeCounts Counts per topic of every advice code id + 1 of a level
+     * @param codeId           Advice code id + 1, 0 for no advice code
+     * @param topicNumber      Topic
+     * @param numTopics        Number of topics
+     */
+    private static void addAdviceCode(int[][] adviceCodeCounts, int codeId, int topicNumber, int numTopics) {
+        if (adviceCodeCounts[codeId] == null)
+            adviceCodeCounts[codeId] = new int[numTopics];
+        adviceCodeCounts[codeId][topicNumber]++;
+    }
+
+    /**
+     * Returns the advice code of an id + 1, "null" for no advice code as in the files per topic
+     *
+     * @param codeId Advice code id + 1
+     * @return
+     */
+    private String getAdviceCode(int codeId) {
+        return codeId == 0 ? "null" : adviceCodeIndex_.getCode(codeId - 1);
+    }
 }
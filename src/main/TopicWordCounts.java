@@ -0,0 +1,210 @@
+package main;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Topic counts of every word and tokens per topic, as the counts of a Mallet sampler but dense, with the changes
+ * pending to be added to them. The coordinator and the workers of the distributed training keep the same counts and
+ * exchange only the changes of every iteration
+ */
+public class TopicWordCounts {
+
+    private final int numTopics_;
+    private final int[][] counts_;
+    private final int[] tokensPerTopic_;
+    private final int[][] changes_;
+    private final boolean[] changed_;
+    private final int[] changedTypes_;
+    private int numChangedTypes_;
+
+    /**
+     * Creates counts of zero
+     *
+     * @param numTypes  Number of words
+     * @param numTopics Number of topics
+     */
+    public TopicWordCounts(int numTypes, int numTopics) {
+        numTopics_ = numTopics;
+        counts_ = new int[numTypes][numTopics];
+        tokensPerTopic_ = new int[numTopics];
+        changes_ = new int[numTypes][numTopics];
+        changed_ = new boolean[numTypes];
+        changedTypes_ = new int[numTypes];
+        numChangedTypes_ = 0;
+    }
+
+    /**
+     * Adds the counts of a Mallet sampler, where every value is a count shifted by the topic bits plus its topic
+     *
+     * @param typeTopicCounts Counts by word of the sampler
+     * @param topicMask       Mask of the topic of a value
+     * @param topicBits       Number of bits of the topic of a value
+     */
+    public void addMalletCounts(int[][] typeTopicCounts, int topicMask, int topicBits) {
+        for (int type = 0; type < typeTopicCounts.length; type++) {
+            for (int value : typeTopicCounts[type]) {
+                if (value == 0)
+                    break;
+                counts_[type][value & topicMask] += value >> topicBits;
+                tokensPerTopic_[value & topicMask] += value >> topicBits;
+            }
+        }
+    }
+
+    /**
+     * Writes the counts to the arrays of a Mallet sampler, sorted by count in descending order. Arrays of words that
+     * are missing are created with room for every topic the word can have
+     *
+     * @param typeTopicCounts Counts by word of the sampler
+     * @param tokensPerTopic  Tokens per topic of the sampler
+     * @param topicBits       Number of bits of the topic of a value
+     */
+    public void toMalletCounts(int[][] typeTopicCounts, int[] tokensPerTopic, int topicBits) {
+        for (int type = 0; type < counts_.length; type++) {
+            int[] counts = counts_[type];
+            int[] values = typeTopicCounts[type];
+            if (values == null) {
+                long total = 0;
+                for (int count : counts)
+                    total += count;
+                values = new int[(int) Math.min(numTopics_, Math.max(1, total))];
+                typeTopicCounts[type] = values;
+            }
+
+            int numValues = 0;
+            for (int topic = 0; topic < numTopics_; topic++) {
+                if (counts[topic] > 0)
+                    values[numValues++] = (counts[topic] << topicBits) + topic;
+            }
+            Arrays.fill(values, numValues, values.length, 0);
+            Arrays.sort(values, 0, numValues);
+            for (int i = 0, j = numValues - 1; i < j; i++, j--) {
+                int value = values[i];
+                values[i] = values[j];
+                values[j] = value;
+            }
+        }
+        System.arraycopy(tokensPerTopic_, 0, tokensPerTopic, 0, numTopics_);
+    }
+
+    /**
+     * Adds a change to the count of a word in a topic, pending until the changes are applied
+     *
+     * @param type   Word
+     * @param topic  Topic
+     * @param change Number of tokens to add, negative to remove
+     */
+    public void addChange(int type, int topic, int change) {
+        if (!changed_[type]) {
+            changed_[type] = true;
+            changedTypes_[numChangedTypes_++] = type;
+        }
+        changes_[type][topic] += change;
+    }
+
+    /**
+     * Adds the pending changes to the counts
+     */
+    public void applyChanges() {
+        for (int i = 0; i < numChangedTypes_; i++) {
+            int type = changedTypes_[i];
+            for (int topic = 0; topic < numTopics_; topic++) {
+                counts_[type][topic] += changes_[type][topic];
+                tokensPerTopic_[topic] += changes_[type][topic];
+            }
+        }
+        clearChanges();
+    }
+
+    /**
+     * Discards the pending changes
+     */
+    public void clearChanges() {
+        for (int i = 0; i < numChangedTypes_; i++) {
+            int type = changedTypes_[i];
+            Arrays.fill(changes_[type], 0);
+            changed_[type] = false;
+        }
+        numChangedTypes_ = 0;
+    }
+
+    /**
+     * Writes the pending changes: the number of words, and for every word its number of topics and the topics with
+     * their changes
+     *
+     * @param output Stream to write to
+     * @throws IOException
+     */
+    public void writeChanges(DataOutputStream output) throws IOException {
+        int numTypes = 0;
+        for (int i = 0; i < numChangedTypes_; i++) {
+            if (countNonZero(changes_[changedTypes_[i]]) > 0)
+                numTypes++;
+        }
+        output.writeInt(numTypes);
+        for (int i = 0; i < numChangedTypes_; i++)
+            writeType(output, changedTypes_[i], changes_[changedTypes_[i]]);
+    }
+
+    /**
+     * Writes the counts in the format of the changes, so reading them into empty counts and applying them copies the
+     * counts
+     *
+     * @param output Stream to write to
+     * @throws IOException
+     */
+    public void writeCounts(DataOutputStream output) throws IOException {
+        int numTypes = 0;
+        for (int[] counts : counts_) {
+            if (countNonZero(counts) > 0)
+                numTypes++;
+        }
+        output.writeInt(numTypes);
+        for (int type = 0; type < counts_.length; type++)
+            writeType(output, type, counts_[type]);
+    }
+
+    /**
+     * Reads changes written by {@link #writeChanges} or {@link #writeCounts} and adds them to the pending changes
+     *
+     * @param input Stream to read from
+     * @throws IOException
+     */
+    public void readChanges(DataInputStream input) throws IOException {
+        int numTypes = input.readInt();
+        for (int i = 0; i < numTypes; i++) {
+            int type = input.readInt();
+            int numValues = input.readInt();
+            for (int j = 0; j < numValues; j++) {
+                int topic = input.readInt();
+                addChange(type, topic, input.readInt());
+            }
+        }
+    }
+
+    private static void writeType(DataOutputStream output, int type, int[] values) throws IOException {
+        int numValues = countNonZero(values);
+        if (numValues == 0)
+            return;
+        output.writeInt(type);
+        output.writeInt(numValues);
+        for (int topic = 0; topic < values.length; topic++) {
+            if (values[topic] != 0) {
+                output.writeInt(topic);
+                output.writeInt(values[topic]);
+            }
+        }
+    }
+
+    private static int countNonZero(int[] values) {
+        int numValues = 0;
+        for (int value : values) {
+            if (value != 0)
+                numValues++;
+        }
+        return numValues;
+    }
+}
@@ -0,0 +1,285 @@
+package main;
+
+import cc.mallet.topics.ParallelTopicModel;
+
+/**
+ * Parameters of the topic model and of the Gibbs sampler used in training
+ */
+public class TrainingParameters {
+
+    public static final int DEFAULT_NUM_ITERATIONS = 2000;
+    public static final int DEFAULT_OPTIMIZE_INTERVAL = 50;
+    public static final int DEFAULT_BURNIN_PERIOD = 200;
+    public static final int DEFAULT_RANDOM_SEED = 1;
+    public static final int DEFAULT_CONVERGENCE_INTERVAL = 50;
+    public static final int DEFAULT_CONVERGENCE_WINDOW = 4;
+    public static final int DEFAULT_UPDATE_ITERATIONS = 200;
+    public static final int DEFAULT_NUM_PASSES = 1;
+
+    private int numThreads_;
+    private int numIterations_;
+    private double alphaSum_;
+    private double beta_;
+    private int optimizeInterval_;
+    private int burninPeriod_;
+    private int randomSeed_;
+    private double convergenceThreshold_;
+    private int convergenceInterval_;
+    private int convergenceWindow_;
+    private long timeBudgetSeconds_;
+    private int batchSize_;
+    private int numPasses_;
+    private int numWorkerProcesses_;
+    private int coordinatorPort_;
+    private boolean spawnWorkerProcesses_;
+
+    /**
+     * Creates the default parameters: one sampler per available processor, 2000 iterations, alpha of 1 per topic,
+     * beta of 0.01, hyperparameter optimization every 50 iterations after 200 iterations of burn-in, random seed 1,
+     * no early stopping and no time budget. The online engine reads batches of 256 documents in one pass. The
+     * sampler runs in this process
+     */
+    public TrainingParameters() {
+        numThreads_ = Runtime.getRuntime().availableProcessors();
+        numIterations_ = DEFAULT_NUM_ITERATIONS;
+        alphaSum_ = 0;
+        beta_ = ParallelTopicModel.DEFAULT_BETA;
+        optimizeInterval_ = DEFAULT_OPTIMIZE_INTERVAL;
+        burninPeriod_ = DEFAULT_BURNIN_PERIOD;
+        randomSeed_ = DEFAULT_RANDOM_SEED;
+        convergenceThreshold_ = 0;
+        convergenceInterval_ = DEFAULT_CONVERGENCE_INTERVAL;
+        convergenceWindow_ = DEFAULT_CONVERGENCE_WINDOW;
+        timeBudgetSeconds_ = 0;
+        batchSize_ = OnlineLda.DEFAULT_BATCH_SIZE;
+        numPasses_ = DEFAULT_NUM_PASSES;
+        numWorkerProcesses_ = 0;
+        coordinatorPort_ = DistributedTrainer.DEFAULT_PORT;
+        spawnWorkerProcesses_ = false;
+    }
+
+    /**
+     * Indicates if the training runs in chunks, to stop on convergence or when the time budget runs out
+     *
+     * @return
+     */
+    public boolean isEarlyStopping() {
+        return convergenceThreshold_ > 0 || timeBudgetSeconds_ > 0;
+    }
+
+    /**
+     * Creates a model with the parameters, ready to add instances
+     *
+     * @param numTopics Number of topics to find
+     * @return
+     */
+    public ParallelTopicModel newTopicModel(int numTopics) {
+        ParallelTopicModel model = new ParallelTopicModel(numTopics, alphaSum_ > 0 ? alphaSum_ : numTopics, beta_);
+        // Parallel samplers each look at a part of the corpus and combine statistics after every iteration
+        model.setNumThreads(numThreads_);
+        model.setNumIterations(numIterations_);
+        model.setOptimizeInterval(optimizeInterval_);
+        model.setBurninPeriod(burninPeriod_);
+        model.setRandomSeed(randomSeed_); // To replicate results
+        return model;
+    }
+
+    public int getNumThreads() {
+        return numThreads_;
+    }
+
+    public void setNumThreads(int numThreads) {
+        numThreads_ = Math.max(1, numThreads);
+    }
+
+    public int getNumIterations() {
+        return numIterations_;
+    }
+
+    public void setNumIterations(int numIterations) {
+        numIterations_ = numIterations;
+    }
+
+    public double getAlphaSum() {
+        return alphaSum_;
+    }
+
+    /**
+     * Sets the sum of the Dirichlet prior over topics. A value of 0 or less uses the number of topics
+     *
+     * @param alphaSum Sum of alpha over all topics
+     */
+    public void setAlphaSum(double alphaSum) {
+        alphaSum_ = alphaSum;
+    }
+
+    public double getBeta() {
+        return beta_;
+    }
+
+    public void setBeta(double beta) {
+        beta_ = beta;
+    }
+
+    public int getOptimizeInterval() {
+        return optimizeInterval_;
+    }
+
+    /**
+     * Sets the number of iterations between hyperparameter optimizations. 0 disables the optimization
+     *
+     * @param optimizeInterval Number of iterations
+     */
+    public void setOptimizeInterval(int optimizeInterval) {
+        optimizeInterval_ = optimizeInterval;
+    }
+
+    public int getBurninPeriod() {
+        return burninPeriod_;
+    }
+
+    public void setBurninPeriod(int burninPeriod) {
+        burninPeriod_ = burninPeriod;
+    }
+
+    public int getRandomSeed() {
+        return randomSeed_;
+    }
+
+    public void setRandomSeed(int randomSeed) {
+        randomSeed_ = randomSeed;
+    }
+
+    public double getConvergenceThreshold() {
+        return convergenceThreshold_;
+    }
+
+    /**
+     * Sets the relative improvement of the log likelihood over the window under which the training stops.
+     * 0 disables the check
+     *
+     * @param convergenceThreshold Relative improvement, for example 0.001
+     */
+    public void setConvergenceThreshold(double convergenceThreshold) {
+        convergenceThreshold_ = convergenceThreshold;
+    }
+
+    public int getConvergenceInterval() {
+        return convergenceInterval_;
+    }
+
+    /**
+     * Sets the number of iterations between log likelihood checks. The training runs in chunks of this length rounded
+     * up to a multiple of the optimize interval, see {@link #getChunkLength}
+     *
+     * @param convergenceInterval Number of iterations
+     */
+    public void setConvergenceInterval(int convergenceInterval) {
+        convergenceInterval_ = Math.max(1, convergenceInterval);
+    }
+
+    /**
+     * Returns the number of iterations the sampler runs between log likelihood checks with early stopping. Every chunk
+     * counts its iterations from 1 and optimizes the hyperparameters when its iteration is a multiple of the optimize
+     * interval, so the convergence interval is rounded up to a multiple of it: hyperparameters are then optimized at
+     * the same iterations as without early stopping
+     *
+     * @return
+     */
+    public int getChunkLength() {
+        if (optimizeInterval_ <= 0)
+            return convergenceInterval_;
+        return (convergenceInterval_ + optimizeInterval_ - 1) / optimizeInterval_ * optimizeInterval_;
+    }
+
+    public int getConvergenceWindow() {
+        return convergenceWindow_;
+    }
+
+    /**
+     * Sets the number of checks the improvement of the log likelihood is measured over
+     *
+     * @param convergenceWindow Number of checks
+     */
+    public void setConvergenceWindow(int convergenceWindow) {
+        convergenceWindow_ = Math.max(1, convergenceWindow);
+    }
+
+    public long getTimeBudgetSeconds() {
+        return timeBudgetSeconds_;
+    }
+
+    /**
+     * Sets the wall clock time after which the training stops, checked between chunks. 0 disables the budget
+     *
+     * @param timeBudgetSeconds Time budget in seconds
+     */
+    public void setTimeBudgetSeconds(long timeBudgetSeconds) {
+        timeBudgetSeconds_ = timeBudgetSeconds;
+    }
+
+    public int getBatchSize() {
+        return batchSize_;
+    }
+
+    /**
+     * Sets the number of documents of every mini-batch of the online engine
+     *
+     * @param batchSize Number of documents
+     */
+    public void setBatchSize(int batchSize) {
+        batchSize_ = Math.max(1, batchSize);
+    }
+
+    public int getNumPasses() {
+        return numPasses_;
+    }
+
+    /**
+     * Sets the number of passes of the online engine over the training documents
+     *
+     * @param numPasses Number of passes
+     */
+    public void setNumPasses(int numPasses) {
+        numPasses_ = Math.max(1, numPasses);
+    }
+
+    public int getNumWorkerProcesses() {
+        return numWorkerProcesses_;
+    }
+
+    /**
+     * Sets the number of worker processes the Gibbs sampling is distributed to. 0 samples in this process
+     *
+     * @param numWorkerProcesses Number of worker processes
+     */
+    public void setNumWorkerProcesses(int numWorkerProcesses) {
+        numWorkerProcesses_ = Math.max(0, numWorkerProcesses);
+    }
+
+    public int getCoordinatorPort() {
+        return coordinatorPort_;
+    }
+
+    /**
+     * Sets the port the worker processes connect to on the loopback address
+     *
+     * @param coordinatorPort Port, 0 for any free port if the workers are spawned
+     */
+    public void setCoordinatorPort(int coordinatorPort) {
+        coordinatorPort_ = coordinatorPort;
+    }
+
+    public boolean isSpawnWorkerProcesses() {
+        return spawnWorkerProcesses_;
+    }
+
+    /**
+     * Sets if the worker processes are started by the training, on this machine
+     *
+     * @param spawnWorkerProcesses Indicates if the workers are spawned
+     */
+    public void setSpawnWorkerProcesses(boolean spawnWorkerProcesses) {
+        spawnWorkerProcesses_ = spawnWorkerProcesses;
+    }
+}
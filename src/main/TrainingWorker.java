@@ -0,0 +1,158 @@
+package main;
+
+import cc.mallet.topics.TopicAssignment;
+import cc.mallet.topics.WorkerRunnable;
+import cc.mallet.types.*;
+import cc.mallet.util.Randoms;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * Worker process of the distributed training. Receives a shard of the documents from the {@link DistributedTrainer},
+ * samples it with a Mallet sampler in every iteration and sends back the changes of the topic counts, until the
+ * coordinator asks for the topic assignments of the shard to finish. It may also ask for them in between, to compute
+ * the log likelihood of the model
+ */
+public class TrainingWorker {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String host_;
+    private final int port_;
+
+    /**
+     * Creates a worker of a coordinator
+     *
+     * @param host Host of the coordinator
+     * @param port Port of the coordinator
+     */
+    public TrainingWorker(String host, int port) {
+        host_ = host;
+        port_ = port;
+    }
+
+    /**
+     * Connects to the coordinator and samples until it finishes
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        Socket socket = new Socket(host_, port_);
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            output.writeInt(DistributedTrainer.PROTOCOL_VERSION);
+            output.flush();
+
+            // Parameters of the sampler
+            int numTopics = input.readInt();
+            int numTypes = input.readInt();
+            int topicBits = input.readInt();
+            int randomSeed = input.readInt();
+            int statisticsSize = input.readInt();
+            double[] alpha = new double[numTopics];
+            double[] hyperparameters = readHyperparameters(input, alpha);
+
+            // Documents of the shard, with their topic assignments
+            Alphabet dataAlphabet = new Alphabet();
+            LabelAlphabet topicAlphabet = new LabelAlphabet();
+            ArrayList<TopicAssignment> data = new ArrayList<TopicAssignment>();
+            int[][] previousTopics = new int[input.readInt()][];
+            for (int doc = 0; doc < previousTopics.length; doc++) {
+                int[] tokens = new int[input.readInt()];
+                int[] topics = new int[tokens.length];
+                for (int position = 0; position < tokens.length; position++) {
+                    tokens[position] = input.readInt();
+                    topics[position] = input.readInt();
+                }
+                Instance instance = new Instance(new FeatureSequence(dataAlphabet, tokens), null, null, null);
+                data.add(new TopicAssignment(instance, new LabelSequence(topicAlphabet, topics)));
+                previousTopics[doc] = topics.clone();
+            }
+
+            // Counts of all the documents
+            TopicWordCounts counts = new TopicWordCounts(numTypes, numTopics);
+            counts.readChanges(input);
+            counts.applyChanges();
+            int[][] typeTopicCounts = new int[numTypes][];
+            int[] tokensPerTopic = new int[numTopics];
+            counts.toMalletCounts(typeTopicCounts, tokensPerTopic, topicBits);
+
+            Randoms random = randomSeed == -1 ? new Randoms() : new Randoms(randomSeed);
+            System.out.println(String.format("Worker sampling %d documents", data.size()));
+            while (true) {
+                int message = input.readInt();
+                if (message == DistributedTrainer.SAMPLE) {
+                    boolean collectStatistics = input.readBoolean();
+                    // A sampler of the shard only, which keeps the counts of all the documents it starts with
+                    WorkerRunnable runnable = new WorkerRunnable(numTopics, alpha, hyperparameters[0],
+                            hyperparameters[1], random, data, typeTopicCounts, tokensPerTopic, 0, data.size());
+                    runnable.makeOnlyThread();
+                    if (collectStatistics) {
+                        runnable.initializeAlphaStatistics(statisticsSize);
+                        runnable.collectAlphaStatistics();
+                    }
+                    runnable.run();
+
+                    // Changes of the counts, from the tokens whose topic changed
+                    for (int doc = 0; doc < data.size(); doc++) {
+                        FeatureSequence tokens = (FeatureSequence) data.get(doc).instance.getData();
+                        int[] topics = data.get(doc).topicSequence.getFeatures();
+                        int[] previous = previousTopics[doc];
+                        for (int position = 0; position < previous.length; position++) {
+                            if (topics[position] != previous[position]) {
+                                int type = tokens.getIndexAtPosition(position);
+                                counts.addChange(type, previous[position], -1);
+                                counts.addChange(type, topics[position], 1);
+                                previous[position] = topics[position];
+                            }
+                        }
+                    }
+                    counts.writeChanges(output);
+                    // The changes of this worker come back with the ones of the others
+                    counts.clearChanges();
+                    if (collectStatistics) {
+                        for (int value : runnable.getDocLengthCounts())
+                            output.writeInt(value);
+                        for (int[] topicDocCounts : runnable.getTopicDocCounts()) {
+                            for (int value : topicDocCounts)
+                                output.writeInt(value);
+                        }
+                    }
+                    output.flush();
+                } else if (message == DistributedTrainer.UPDATE) {
+                    counts.readChanges(input);
+                    counts.applyChanges();
+                    hyperparameters = readHyperparameters(input, alpha);
+                    counts.toMalletCounts(typeTopicCounts, tokensPerTopic, topicBits);
+                } else if (message == DistributedTrainer.ASSIGNMENTS || message == DistributedTrainer.FINISH) {
+                    // The topics after the last sampling
+                    for (int[] topics : previousTopics) {
+                        for (int topic : topics)
+                            output.writeInt(topic);
+                    }
+                    output.flush();
+                    if (message == DistributedTrainer.FINISH)
+                        break;
+                } else
+                    throw new IOException("Unknown message " + message);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Reads alpha into an array, and returns the sum of alpha and beta
+     */
+    private static double[] readHyperparameters(DataInputStream input, double[] alpha) throws IOException {
+        for (int topic = 0; topic < alpha.length; topic++)
+            alpha[topic] = input.readDouble();
+        double alphaSum = input.readDouble();
+        double beta = input.readDouble();
+        return new double[]{alphaSum, beta};
+    }
+}
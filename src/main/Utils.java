@@ -4,9 +4,12 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,9 +27,23 @@ public class Utils {
     public static final String INFO_ALL_WORDS_COUNT_FILENAME = "allwordswithcount.csv";
     public static final String DATA_MODEL_MALLET = "model.dat";
     public static final String DATA_MODEL_INSTANCES_MALLET = "instances.dat";
+    public static final String DATA_CORPUS_BINARY = "corpus.bin";
+    public static final String DATA_INFERENCER_MALLET = "inferencer.dat";
+    public static final String DATA_ADVICE_CODE_CLASSIFIER = "advice_code_classifier.dat";
     public static final String TOPIC_KEYS_MALLET = "topic_keys_mallet.txt";
     public static final String TOPIC_COMPOSITION_MALLET = "topic_composition_mallet.txt";
+    public static final String SCALING_REPORT_FILENAME = "scaling_report.csv";
+    public static final String SWEEP_REPORT_FILENAME = "sweep_report.csv";
+    public static final String TOPICS_FOLDER = "topics";
+    public static final String TOPICS_ADVICE_CODE_FOLDER = "topicsadvicecode";
+    public static final String TOPICS_ADVICE_CODE_FILENAME = "topicsadvicecode.csv";
+    public static final String TOPIC_PER_ID_FILENAME = "topicperid.csv";
+    public static final String PREPROCESSING_KEY_FILENAME = "preprocessing_key.txt";
+    public static final String RUN_REPORT_JSON_FILENAME = "run_report.json";
+    public static final String RUN_REPORT_CSV_FILENAME = "run_report.csv";
     public static final String EMAIL_REGEX = "([a-zA-Z0-9=*!$&_.+-]+@[a-zA-Z0-9-]+\\.[a-zA-Z0-9-.]+)";
+    public static final String TOKEN_REGEX = "\\p{L}[\\p{L}\\p{P}]+\\p{L}";
+    public static final String TRAINING_LINE_REGEX = "^([^,]*),([^,]*),(.*)$";
     public static final String URL_REGEX = "((https?|ftp|gopher|telnet|file|Unsure|http):((//)|(\\\\))+[\\w\\d:#@%/;$()~_?\\+-=\\\\\\.&]*)";
 
     /**
@@ -93,6 +110,40 @@ public class Utils {
         return value;
     }
 
+    /**
+     * Loads a list of words from a file, one word per line. Empty lines and lines beginning with # are ignored
+     *
+     * @param path Path of the file
+     * @return
+     * @throws IOException
+     */
+    public static ArrayList<String> loadWordList(String path) throws IOException {
+        ArrayList<String> wordList = new ArrayList<String>();
+        BufferedReader brInput = null;
+        try {
+            if (validateFile(path)) {
+                // Load
+                brInput = getBufferedReader(path);
+                String inputLine = brInput.readLine();
+                // Read lines
+                while (inputLine != null) {
+                    // Do not process empty lines or lines beginning with #
+                    if (inputLine.isEmpty() || inputLine.startsWith("#")) {
+                        inputLine = brInput.readLine();
+                        continue;
+                    }
+                    // Add line to list
+                    wordList.add(inputLine.trim());
+                    inputLine = brInput.readLine();
+                }
+            } else
+                System.err.println("File not found: " + path);
+        } finally {
+            closeBufferedReader(brInput);
+        }
+        return wordList;
+    }
+
     /**
      * Validates if the file or directory exists in the given path
      *
@@ -104,6 +155,57 @@ public class Utils {
         return file.exists();
     }
 
+    /**
+     * Adds the contents of a file to a digest. A file that does not exist adds nothing
+     *
+     * @param digest Digest to update
+     * @param path   Path of the file
+     * @throws IOException
+     */
+    public static void updateDigest(MessageDigest digest, String path) throws IOException {
+        if (!validateFile(path))
+            return;
+
+        InputStream input = null;
+        try {
+            input = new FileInputStream(path);
+            byte[] buffer = new byte[1 << 16];
+            int length = input.read(buffer);
+            while (length >= 0) {
+                digest.update(buffer, 0, length);
+                length = input.read(buffer);
+            }
+        } finally {
+            if (input != null)
+                input.close();
+        }
+    }
+
+    /**
+     * Returns a future that failed with an exception, to pass an error through a queue of pending results
+     *
+     * @param ex Error
+     * @return
+     */
+    public static <T> Future<T> failedFuture(Exception ex) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(ex);
+        return future;
+    }
+
+    /**
+     * Returns the bytes of a digest as a hexadecimal string
+     *
+     * @param digest Digest bytes
+     * @return
+     */
+    public static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest)
+            sb.append(String.format("%02x", b & 0xFF));
+        return sb.toString();
+    }
+
     /**
      * Creates a directory given a path
      *
@@ -181,7 +283,7 @@ public class Utils {
      * @return
      */
     public static <K, V extends Comparable<? super V>> Map<K, V> sortByValueAsc(Map<K, V> map) {
-        List<Map.Entry<K, V>> list = new LinkedList<>(map.entrySet());
+        List<Map.Entry<K, V>> list = new ArrayList<>(map.entrySet());
         Collections.sort(list, new Comparator<Map.Entry<K, V>>() {
             @Override
             public int compare(Map.Entry<K, V> o1, Map.Entry<K, V> o2) {
@@ -205,7 +307,7 @@ public class Utils {
      * @return
      */
     public static <K, V extends Comparable<? super V>> Map<K, V> sortByValueDesc(Map<K, V> map) {
-        List<Map.Entry<K, V>> list = new LinkedList<>(map.entrySet());
+        List<Map.Entry<K, V>> list = new ArrayList<>(map.entrySet());
         Collections.sort(list, new Comparator<Map.Entry<K, V>>() {
             @Override
             public int compare(Map.Entry<K, V> o1, Map.Entry<K, V> o2) {
@@ -220,6 +322,126 @@ public class Utils {
         return result;
     }
 
+    /**
+     * Compares two indices of an array, without boxing
+     */
+    public interface IndexComparator {
+        int compare(int index1, int index2);
+    }
+
+    /**
+     * Sorts indices with a comparator. The sort is stable, so equal elements keep their order
+     *
+     * @param indices    Indices to sort
+     * @param comparator Comparator of the indices
+     */
+    public static void sortIndices(int[] indices, IndexComparator comparator) {
+        int[] buffer = new int[indices.length];
+        // Bottom up merge sort, swapping the source and destination arrays on every pass
+        int[] source = indices;
+        int[] destination = buffer;
+        for (int width = 1; width < indices.length; width *= 2) {
+            for (int low = 0; low < indices.length; low += 2 * width) {
+                int middle = Math.min(low + width, indices.length);
+                int high = Math.min(low + 2 * width, indices.length);
+                int left = low;
+                int right = middle;
+                for (int i = low; i < high; i++) {
+                    if (left < middle && (right >= high || comparator.compare(source[left], source[right]) <= 0))
+                        destination[i] = source[left++];
+                    else
+                        destination[i] = source[right++];
+                }
+            }
+            int[] swap = source;
+            source = destination;
+            destination = swap;
+        }
+        if (source != indices)
+            System.arraycopy(source, 0, indices, 0, indices.length);
+    }
+
+    /**
+     * Returns the indices of an array sorted by value, in descending order. Equal values keep the order of their indices
+     *
+     * @param values Values to sort
+     * @return
+     */
+    public static int[] sortIndicesDesc(double[] values) {
+        int[] indices = new int[values.length];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = i;
+        sortIndices(indices, (index1, index2) -> Double.compare(values[index2], values[index1]));
+        return indices;
+    }
+
+    /**
+     * Returns the indices of the k highest values of an array, in descending order. Equal values keep the order of
+     * their indices. Uses a min heap of size k, so only the selected indices are sorted
+     *
+     * @param values Values to select from
+     * @param k      Number of indices to return
+     * @return
+     */
+    public static int[] topIndicesDesc(double[] values, int k) {
+        k = Math.min(k, values.length);
+        int[] heap = new int[k];
+        int size = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (size < k) {
+                // Sift up
+                int child = size++;
+                while (child > 0) {
+                    int parent = (child - 1) / 2;
+                    if (!isLower(values, i, heap[parent]))
+                        break;
+                    heap[child] = heap[parent];
+                    child = parent;
+                }
+                heap[child] = i;
+            } else if (k > 0 && isLower(values, heap[0], i)) {
+                siftDown(values, heap, size, i);
+            }
+        }
+
+        // Remove the lowest until the heap is empty, filling the result from the end
+        int[] result = new int[size];
+        while (size > 0) {
+            result[size - 1] = heap[0];
+            size--;
+            siftDown(values, heap, size, heap[size]);
+        }
+        return result;
+    }
+
+    /**
+     * Indicates if the value of index1 ranks lower than the value of index2. On equal values the higher index ranks lower
+     */
+    private static boolean isLower(double[] values, int index1, int index2) {
+        int compare = Double.compare(values[index1], values[index2]);
+        return compare < 0 || (compare == 0 && index1 > index2);
+    }
+
+    /**
+     * Places an index at the root of a min heap and moves it down to its position
+     */
+    private static void siftDown(double[] values, int[] heap, int size, int index) {
+        int parent = 0;
+        while (true) {
+            int child = 2 * parent + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && isLower(values, heap[child + 1], heap[child]))
+                child++;
+            if (!isLower(values, heap[child], index))
+                break;
+            heap[parent] = heap[child];
+            parent = child;
+        }
+        if (size > 0)
+            heap[parent] = index;
+    }
+
     /**
      * Generates a backup of files within a folder
      *
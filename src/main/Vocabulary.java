@@ -0,0 +1,149 @@
+package main;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe word counter. Every word is interned to a dense int id the first time it is seen, and the counts are
+ * kept in primitive pages indexed by id, so counting a word is one map lookup and one atomic increment
+ */
+public class Vocabulary {
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final ConcurrentHashMap<String, Integer> ids_;
+    private final Object pagesLock_;
+    private volatile String[][] words_;
+    private volatile AtomicLongArray[] counts_;
+    private int size_;
+
+    /**
+     * Creates a new empty vocabulary
+     */
+    public Vocabulary() {
+        ids_ = new ConcurrentHashMap<String, Integer>();
+        pagesLock_ = new Object();
+        words_ = new String[0][];
+        counts_ = new AtomicLongArray[0];
+        size_ = 0;
+    }
+
+    /**
+     * Returns the number of different words
+     *
+     * @return
+     */
+    public int size() {
+        synchronized (pagesLock_) {
+            return size_;
+        }
+    }
+
+    /**
+     * Returns the id of a word, adding it to the vocabulary if it is new
+     *
+     * @param word Word to intern
+     * @return
+     */
+    public int getId(String word) {
+        Integer id = ids_.get(word);
+        if (id == null)
+            id = ids_.computeIfAbsent(word, this::newId);
+        return id;
+    }
+
+    /**
+     * Returns the word of an id
+     *
+     * @param id Id of the word
+     * @return
+     */
+    public String getWord(int id) {
+        return words_[id >>> PAGE_BITS][id & PAGE_MASK];
+    }
+
+    /**
+     * Returns the count of an id
+     *
+     * @param id Id of the word
+     * @return
+     */
+    public long getCount(int id) {
+        return counts_[id >>> PAGE_BITS].get(id & PAGE_MASK);
+    }
+
+    /**
+     * Adds one to the count of a word
+     *
+     * @param word Word to count
+     */
+    public void add(String word) {
+        int id = getId(word);
+        counts_[id >>> PAGE_BITS].incrementAndGet(id & PAGE_MASK);
+    }
+
+    /**
+     * Adds the words of a clean string, separated by a single space. As with String.split, an empty string counts as
+     * one empty word
+     *
+     * @param value Clean value
+     */
+    public void addWords(String value) {
+        int start = 0;
+        int end = value.indexOf(' ');
+        while (end >= 0) {
+            add(value.substring(start, end));
+            start = end + 1;
+            end = value.indexOf(' ', start);
+        }
+        add(value.substring(start));
+    }
+
+    /**
+     * Writes a line "word,count" per word, sorted by count in descending order and then by word
+     *
+     * @param writer Writer to use
+     * @throws IOException
+     */
+    public void write(ArtifactWriter writer) throws IOException {
+        int[] ids = new int[size()];
+        for (int id = 0; id < ids.length; id++)
+            ids[id] = id;
+        Utils.sortIndices(ids, (id1, id2) -> {
+            int compare = Long.compare(getCount(id2), getCount(id1));
+            return compare != 0 ? compare : getWord(id1).compareTo(getWord(id2));
+        });
+
+        for (int id : ids) {
+            writer.append(getWord(id)).append(',').append(getCount(id)).endLine();
+        }
+    }
+
+    /**
+     * Assigns the next id to a new word, growing the pages if needed
+     *
+     * @param word New word
+     * @return
+     */
+    private Integer newId(String word) {
+        synchronized (pagesLock_) {
+            int id = size_;
+            int page = id >>> PAGE_BITS;
+            if (page == counts_.length) {
+                String[][] words = Arrays.copyOf(words_, page + 1);
+                words[page] = new String[PAGE_SIZE];
+                AtomicLongArray[] counts = Arrays.copyOf(counts_, page + 1);
+                counts[page] = new AtomicLongArray(PAGE_SIZE);
+                words_ = words;
+                counts_ = counts;
+            }
+            words_[page][id & PAGE_MASK] = word;
+            size_++;
+            return id;
+        }
+    }
+}
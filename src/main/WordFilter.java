@@ -0,0 +1,209 @@
+package main;
+
+import java.util.List;
+
+/**
+ * Removes a list of words from a string, using an open addressing hash set instead of a regex alternation.
+ * Behaves like replacing {@code \b(?:word1|word2|...)\b\s*} (case insensitive) with a single space: the text is
+ * scanned once, and at every word boundary the candidate words ending at the next boundaries are looked up in the set.
+ * When several candidates match, the one found first in the list wins, as it would in the alternation
+ */
+public class WordFilter {
+
+    private static final int NOT_FOUND = -1;
+
+    private final char[][] keys_;
+    private final int[] ranks_;
+    private final int mask_;
+    private final int maxWordLength_;
+
+    /**
+     * Creates a new word filter
+     *
+     * @param words Words to remove, in order of priority
+     */
+    public WordFilter(List<String> words) {
+        int capacity = Integer.highestOneBit(Math.max(words.size(), 1) * 4 - 1) << 1;
+        keys_ = new char[capacity][];
+        ranks_ = new int[capacity];
+        mask_ = capacity - 1;
+
+        int maxWordLength = 0;
+        for (int rank = 0; rank < words.size(); rank++) {
+            String word = words.get(rank);
+            if (word.isEmpty())
+                continue;
+
+            int slot = hash(word, 0, word.length()) & mask_;
+            while (keys_[slot] != null && !equals(keys_[slot], word, 0, word.length()))
+                slot = (slot + 1) & mask_;
+            // Keep the first occurrence of a duplicated word
+            if (keys_[slot] == null) {
+                char[] key = word.toCharArray();
+                for (int i = 0; i < key.length; i++)
+                    key[i] = toLowerCase(key[i]);
+                keys_[slot] = key;
+                ranks_[slot] = rank;
+            }
+            maxWordLength = Math.max(maxWordLength, word.length());
+        }
+        maxWordLength_ = maxWordLength;
+    }
+
+    /**
+     * Indicates if a word is in the filter
+     *
+     * @param word Word to check
+     * @return
+     */
+    public boolean contains(String word) {
+        return rank(word, 0, word.length()) != NOT_FOUND;
+    }
+
+    /**
+     * Replaces every word of the filter, and the spaces following it, with a single space
+     *
+     * @param value Value to filter
+     * @return
+     */
+    public String remove(String value) {
+        if (maxWordLength_ == 0)
+            return value;
+
+        int length = value.length();
+        StringBuilder sb = null;
+        int copied = 0;
+        int position = 0;
+        while (position < length) {
+            int end = match(value, position);
+            if (end == NOT_FOUND) {
+                position++;
+                continue;
+            }
+
+            // Consume the spaces after the word
+            while (end < length && isSpace(value.charAt(end)))
+                end++;
+
+            if (sb == null)
+                sb = new StringBuilder(length);
+            sb.append(value, copied, position).append(' ');
+            copied = end;
+            position = end;
+        }
+
+        if (sb == null)
+            return value;
+        return sb.append(value, copied, length).toString();
+    }
+
+    /**
+     * Returns the end of the word of the filter starting at a position, or NOT_FOUND
+     *
+     * @param value    Value to check
+     * @param position Position where the word starts
+     * @return
+     */
+    private int match(String value, int position) {
+        if (!isBoundary(value, position))
+            return NOT_FOUND;
+
+        int bestRank = Integer.MAX_VALUE;
+        int bestEnd = NOT_FOUND;
+        int lastEnd = Math.min(value.length(), position + maxWordLength_);
+        for (int end = position + 1; end <= lastEnd; end++) {
+            if (!isBoundary(value, end))
+                continue;
+            int rank = rank(value, position, end);
+            if (rank != NOT_FOUND && rank < bestRank) {
+                bestRank = rank;
+                bestEnd = end;
+            }
+        }
+        return bestEnd;
+    }
+
+    /**
+     * Returns the rank of the word between start and end, or NOT_FOUND
+     *
+     * @param value Value containing the word
+     * @param start Start of the word
+     * @param end   End of the word
+     * @return
+     */
+    private int rank(String value, int start, int end) {
+        int slot = hash(value, start, end) & mask_;
+        char[] key;
+        while ((key = keys_[slot]) != null) {
+            if (equals(key, value, start, end))
+                return ranks_[slot];
+            slot = (slot + 1) & mask_;
+        }
+        return NOT_FOUND;
+    }
+
+    private static int hash(String value, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++)
+            h = 31 * h + toLowerCase(value.charAt(i));
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(char[] key, String value, int start, int end) {
+        if (key.length != end - start)
+            return false;
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != toLowerCase(value.charAt(start + i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Lower case for ASCII letters only, as a case insensitive regex does
+     */
+    private static char toLowerCase(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Whitespace as defined by the regex \s
+     */
+    static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Word boundary as defined by the regex \b
+     */
+    private static boolean isBoundary(String value, int position) {
+        boolean left = false;
+        boolean right = false;
+        if (position > 0) {
+            int ch = value.codePointBefore(position);
+            left = isWord(ch) || (Character.getType(ch) == Character.NON_SPACING_MARK
+                    && hasBaseCharacter(value, position - 1));
+        }
+        if (position < value.length()) {
+            int ch = value.codePointAt(position);
+            right = isWord(ch) || (Character.getType(ch) == Character.NON_SPACING_MARK
+                    && hasBaseCharacter(value, position));
+        }
+        return left != right;
+    }
+
+    private static boolean isWord(int ch) {
+        return ch == '_' || Character.isLetterOrDigit(ch);
+    }
+
+    private static boolean hasBaseCharacter(String value, int position) {
+        for (int i = position; i >= 0; i--) {
+            int ch = value.codePointAt(i);
+            if (Character.isLetterOrDigit(ch))
+                return true;
+            if (Character.getType(ch) != Character.NON_SPACING_MARK)
+                return false;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,106 @@
+package main;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+
+public class BinaryCorpusTest {
+
+    // Word ids take one to three bytes as varints
+    private static final int NUM_WORDS = 20000;
+    private static final int NUM_DOCUMENTS = 500;
+
+    @Rule
+    public TemporaryFolder folder_ = new TemporaryFolder();
+
+    @Test
+    public void readsTheWrittenDocuments() throws IOException {
+        InstanceList instances = newInstances();
+        File file = folder_.newFile("corpus" + BinaryCorpus.FILE_EXTENSION);
+        BinaryCorpus.write(file, instances);
+
+        assertSameDocuments(instances, BinaryCorpus.open(file));
+    }
+
+    @Test
+    public void readsAcrossSegments() throws IOException {
+        InstanceList instances = newInstances();
+        File file = folder_.newFile("corpus" + BinaryCorpus.FILE_EXTENSION);
+        BinaryCorpus.write(file, instances);
+
+        // Segments of 64 bytes, so offsets, varints and strings are split between them
+        assertSameDocuments(instances, BinaryCorpus.open(file, 6));
+    }
+
+    @Test
+    public void importsTheSameInstances() throws IOException {
+        InstanceList instances = newInstances();
+        File file = folder_.newFile("corpus" + BinaryCorpus.FILE_EXTENSION);
+        BinaryCorpus.write(file, instances);
+
+        BinaryCorpus corpus = BinaryCorpus.open(file);
+        InstanceList imported = corpus.toInstances(corpus.newAlphabet());
+        assertEquals(instances.size(), imported.size());
+        for (int doc = 0; doc < instances.size(); doc++) {
+            assertEquals(instances.get(doc).getName(), imported.get(doc).getName());
+            assertEquals(instances.get(doc).getData().toString(), imported.get(doc).getData().toString());
+        }
+    }
+
+    @Test
+    public void writesAnEmptyCorpus() throws IOException {
+        InstanceList instances = new InstanceList(TopicModelling.newImportPipe(new Alphabet()));
+        File file = folder_.newFile("empty" + BinaryCorpus.FILE_EXTENSION);
+        BinaryCorpus.write(file, instances);
+
+        BinaryCorpus corpus = BinaryCorpus.open(file);
+        assertEquals(0, corpus.getNumDocuments());
+        assertEquals(0, corpus.getNumTypes());
+    }
+
+    /**
+     * Documents of random words, some empty, with ids of several lengths and characters outside ASCII
+     */
+    private static InstanceList newInstances() {
+        Alphabet alphabet = new Alphabet();
+        for (int type = 0; type < NUM_WORDS; type++)
+            alphabet.lookupIndex(type % 3 == 0 ? "wörd" + type : "word" + type);
+        InstanceList instances = new InstanceList(TopicModelling.newImportPipe(alphabet));
+        Random random = new Random(1);
+        for (int doc = 0; doc < NUM_DOCUMENTS; doc++) {
+            int[] tokens = new int[doc % 10 == 0 ? 0 : random.nextInt(50)];
+            for (int position = 0; position < tokens.length; position++)
+                tokens[position] = random.nextInt(NUM_WORDS);
+            String documentID = doc % 2 == 0 ? String.valueOf(doc) : "enquiry-é-" + doc;
+            instances.add(new Instance(new FeatureSequence(alphabet, tokens), Utils.DEFAULT_DOCUMENT_LABEL,
+                    documentID, null));
+        }
+        return instances;
+    }
+
+    private static void assertSameDocuments(InstanceList instances, BinaryCorpus corpus) {
+        Alphabet alphabet = instances.getDataAlphabet();
+        assertEquals(instances.size(), corpus.getNumDocuments());
+        assertEquals(alphabet.size(), corpus.getNumTypes());
+        String[] words = corpus.getWords();
+        for (int type = 0; type < alphabet.size(); type++)
+            assertEquals(alphabet.lookupObject(type), words[type]);
+        for (int doc = 0; doc < instances.size(); doc++) {
+            FeatureSequence tokens = (FeatureSequence) instances.get(doc).getData();
+            assertEquals(instances.get(doc).getName(), corpus.getDocumentId(doc));
+            assertArrayEquals(tokens.toFeatureIndexSequence(), corpus.getTokens(doc));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class CsvReaderTest {
+
+    @Test
+    public void readsQuotedFields() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("\"a,1\",\"say \"\"hi\"\"\",x\n2,plain,y\n"), ',', 0, 1);
+        assertTrue(reader.next());
+        assertEquals("a,1", reader.get(0));
+        assertEquals("say \"hi\"", reader.get(1));
+        assertEquals(3, reader.getNumFields());
+        assertTrue(reader.next());
+        assertEquals("2", reader.get(0));
+        assertEquals("plain", reader.get(1));
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void readsMultiLineFields() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("1,\"first line\r\nsecond line\nthird\"\r\n2,next\r\n"), ',', 0, 1);
+        assertTrue(reader.next());
+        assertEquals("1", reader.get(0));
+        assertEquals("first line\r\nsecond line\nthird", reader.get(1));
+        assertTrue(reader.next());
+        assertEquals("2", reader.get(0));
+        assertEquals("next", reader.get(1));
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void skipsComments() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("# header\n\n1,a\n\r\n#2,b\n3,\"#c\"\n"), ',', 0, 1);
+        reader.setSkipComments(true);
+        assertTrue(reader.next());
+        assertEquals("1", reader.get(0));
+        assertTrue(reader.next());
+        assertEquals("3", reader.get(0));
+        assertEquals("#c", reader.get(1));
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void returnsEmptyMissingColumns() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("1\n"), ',', 0, 2);
+        assertTrue(reader.next());
+        assertEquals("1", reader.get(0));
+        assertEquals("", reader.get(2));
+        assertEquals(1, reader.getNumFields());
+    }
+
+    @Test
+    public void joinsTrailingFields() throws IOException {
+        CsvReader reader = new CsvReader(new StringReader("1,text, with commas,\"and, quotes\"\n\"2\",\"quoted, text\"\n"),
+                ',', 0, 1);
+        reader.setJoinTrailingFields(true);
+        assertTrue(reader.next());
+        assertEquals("1", reader.get(0));
+        assertEquals("text, with commas,and, quotes", reader.get(1));
+        assertEquals(2, reader.getNumFields());
+        assertTrue(reader.next());
+        assertEquals("2", reader.get(0));
+        assertEquals("quoted, text", reader.get(1));
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void readsRecordsLongerThanTheBuffer() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100000; i++)
+            text.append(i % 10);
+        CsvReader reader = new CsvReader(new StringReader("1,\"" + text + "\"\n2," + text + "\n"), ',', 1);
+        assertTrue(reader.next());
+        assertEquals(text.toString(), reader.get(1));
+        assertTrue(reader.next());
+        assertEquals(text.toString(), reader.get(1));
+        assertFalse(reader.next());
+    }
+}
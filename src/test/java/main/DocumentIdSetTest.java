@@ -0,0 +1,50 @@
+package main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class DocumentIdSetTest {
+
+    // Past the 65536 ids kept in memory by default, so ids are spilled and merged
+    private static final int NUM_IDS = 150000;
+
+    @Test
+    public void findsDuplicatesOfSpilledIds() throws IOException {
+        DocumentIdSet ids = new DocumentIdSet();
+        try {
+            for (int i = 0; i < NUM_IDS; i++)
+                assertTrue(ids.add("enquiry-" + i));
+            assertEquals(NUM_IDS, ids.size());
+
+            for (int i = 0; i < NUM_IDS; i += 7)
+                assertFalse("Duplicate enquiry-" + i, ids.add("enquiry-" + i));
+            assertTrue(ids.add("enquiry-" + NUM_IDS));
+            assertEquals(NUM_IDS + 1, ids.size());
+        } finally {
+            ids.close();
+        }
+    }
+
+    @Test
+    public void keepsNumericAndOtherIdsApart() throws IOException {
+        DocumentIdSet ids = new DocumentIdSet(16);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(ids.add(String.valueOf(i)));
+                assertTrue(ids.add("id" + i));
+            }
+            for (int i = 0; i < 1000; i++) {
+                assertFalse(ids.add(String.valueOf(i)));
+                assertFalse(ids.add("id" + i));
+            }
+            assertEquals(2000, ids.size());
+        } finally {
+            ids.close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package main;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the {@link TextCleaner} against {@link Utils#cleanString}, which it replaces
+ */
+public class TextCleanerTest {
+
+    private static final String DATA_FOLDER = "data";
+    private static final String[] FRAGMENTS = {"printer", "broken", "the", "and", "a", "b", "x", "i'm", "don't",
+            "£12.50", "4535", "3", "a1", "-", "...", "!", "?", "(", ")", "\"", "https://support.example.com/kb/41",
+            "ftp://files.example.org", "user682@example.com", "x@y.z", "café", "naïve", "über", "\t", "\n", " ",
+            "\u0085", " ", "e-mail", "re-install", "a.b", "o'clock", "_", "é"};
+
+    private static ArrayList<String> stopWords_;
+    private static ArrayList<String> otherWords_;
+
+    @BeforeClass
+    public static void loadWordLists() throws Exception {
+        stopWords_ = Utils.loadWordList(new File(DATA_FOLDER, "stopwords.txt").getPath());
+        otherWords_ = Utils.loadWordList(new File(DATA_FOLDER, "otherwords.txt").getPath());
+    }
+
+    @Test
+    public void cleansAsCleanString() {
+        TextCleaner textCleaner = new TextCleaner(stopWords_, otherWords_);
+        String stopWordsPattern = String.join("|", stopWords_);
+        String otherWordsPattern = String.join("|", otherWords_);
+        HashMap<String, Integer> expectedCount = new HashMap<String, Integer>();
+        HashMap<String, Integer> actualCount = new HashMap<String, Integer>();
+
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            String document = TextCleaner.toLowerCase(randomDocument(random));
+            String expected = Utils.cleanString(document, stopWordsPattern, otherWordsPattern, expectedCount);
+            assertEquals("Cleaning \"" + document + "\"", expected, textCleaner.clean(document, actualCount));
+        }
+        assertEquals(expectedCount, actualCount);
+    }
+
+    @Test
+    public void cleansEdgeCases() {
+        TextCleaner textCleaner = new TextCleaner(stopWords_, otherWords_);
+        String stopWordsPattern = String.join("|", stopWords_);
+        String otherWordsPattern = String.join("|", otherWords_);
+        String[] documents = {"", " ", "a", "a b", "a b c d", " x printer y ", "printer a", "a printer",
+                "1 2 3", "£", "printer\u0085", "printer b\u0085", "http://example.com", "mail@example.com now"};
+        for (String document : documents) {
+            String expected = Utils.cleanString(document, stopWordsPattern, otherWordsPattern,
+                    new HashMap<String, Integer>());
+            assertEquals("Cleaning \"" + document + "\"", expected, textCleaner.clean(document));
+        }
+    }
+
+    @Test
+    public void tokenizesAsTokenRegex() {
+        assertArrayEquals(new String[0], TextCleaner.tokenize(""));
+        assertArrayEquals(new String[]{"printer", "broken"}, TextCleaner.tokenize("printer is broken"));
+        assertArrayEquals(new String[]{"don't", "e-mail"}, TextCleaner.tokenize("don't e-mail me"));
+    }
+
+    /**
+     * Document of random fragments joined by single or double spaces
+     */
+    private static String randomDocument(Random random) {
+        StringBuilder document = new StringBuilder();
+        int numFragments = random.nextInt(20);
+        for (int i = 0; i < numFragments; i++) {
+            if (i > 0)
+                document.append(random.nextInt(4) == 0 ? "  " : " ");
+            String fragment = FRAGMENTS[random.nextInt(FRAGMENTS.length)];
+            // Fragments are sometimes glued to punctuation
+            if (random.nextInt(5) == 0)
+                fragment += ",";
+            document.append(fragment);
+        }
+        return document.toString();
+    }
+}